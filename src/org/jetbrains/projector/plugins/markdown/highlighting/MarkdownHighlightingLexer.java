@@ -28,10 +28,11 @@ import com.intellij.psi.tree.IElementType;
 import org.jetbrains.projector.plugins.markdown.lang.MarkdownTokenTypeSets;
 import org.jetbrains.projector.plugins.markdown.lang.lexer.MarkdownMergingLexer;
 import org.jetbrains.projector.plugins.markdown.lang.lexer.MarkdownToplevelLexer;
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager;
 
 public class MarkdownHighlightingLexer extends LayeredLexer {
   public MarkdownHighlightingLexer() {
-    super(new MarkdownToplevelLexer());
+    super(new MarkdownToplevelLexer(MarkdownParserManager.FLAVOUR, true));
 
     registerSelfStoppingLayer(new MarkdownMergingLexer(), MarkdownTokenTypeSets.INLINE_HOLDING_ELEMENT_TYPES.getTypes(),
                               IElementType.EMPTY_ARRAY);
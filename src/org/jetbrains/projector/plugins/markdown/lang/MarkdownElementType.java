@@ -26,6 +26,7 @@ package org.jetbrains.projector.plugins.markdown.lang;
 import com.intellij.psi.tree.IElementType;
 import org.intellij.markdown.MarkdownElementTypes;
 import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.flavours.gfm.GFMElementTypes;
 import org.intellij.markdown.flavours.gfm.GFMTokenTypes;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NonNls;
@@ -33,18 +34,41 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.projector.plugins.markdown.lang.stubs.impl.MarkdownHeaderStubElementType;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.text.MessageFormat;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MarkdownElementType extends IElementType {
 
+  /**
+   * Read without locks on every token, so all the types of the library are created when the class is initialized.
+   * Unknown types are added under the class lock.
+   */
   @NotNull
   private static final Map<org.intellij.markdown.IElementType, IElementType> markdownToPlatformTypeMap =
-    new HashMap<>();
+    new ConcurrentHashMap<>();
   @NotNull
   private static final Map<IElementType, org.intellij.markdown.IElementType> platformToMarkdownTypeMap =
-    new HashMap<>();
+    new ConcurrentHashMap<>();
+
+  static {
+    for (Class<?> typesHolder : Arrays.asList(MarkdownElementTypes.class, MarkdownTokenTypes.class,
+                                              GFMElementTypes.class, GFMTokenTypes.class)) {
+      for (Field field : typesHolder.getFields()) {
+        if (Modifier.isStatic(field.getModifiers()) && org.intellij.markdown.IElementType.class.isAssignableFrom(field.getType())) {
+          try {
+            platformType((org.intellij.markdown.IElementType)field.get(null));
+          }
+          catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      }
+    }
+  }
 
   public MarkdownElementType(@NotNull @NonNls String debugName) {
     super(debugName, MarkdownLanguage.INSTANCE);
@@ -57,13 +81,23 @@ public class MarkdownElementType extends IElementType {
   }
 
   @Contract("null -> null; !null -> !null")
-  public synchronized static IElementType platformType(@Nullable org.intellij.markdown.IElementType markdownType) {
+  public static IElementType platformType(@Nullable org.intellij.markdown.IElementType markdownType) {
     if (markdownType == null) {
       return null;
     }
 
-    if (markdownToPlatformTypeMap.containsKey(markdownType)) {
-      return markdownToPlatformTypeMap.get(markdownType);
+    final IElementType platformType = markdownToPlatformTypeMap.get(markdownType);
+    if (platformType != null) {
+      return platformType;
+    }
+    return createPlatformType(markdownType);
+  }
+
+  @NotNull
+  private synchronized static IElementType createPlatformType(@NotNull org.intellij.markdown.IElementType markdownType) {
+    final IElementType existingType = markdownToPlatformTypeMap.get(markdownType);
+    if (existingType != null) {
+      return existingType;
     }
 
     final IElementType result;
@@ -73,13 +107,17 @@ public class MarkdownElementType extends IElementType {
         || markdownType == GFMTokenTypes.CELL) {
       result = new MarkdownLazyElementType(markdownType.toString());
     }
+    else if (MarkdownReparseableElementType.isReparseable(markdownType)) {
+      result = new MarkdownReparseableElementType(markdownType.toString());
+    }
     else {
       result = isHeaderElementType(markdownType)
                ? new MarkdownHeaderStubElementType(markdownType.toString())
                : new MarkdownElementType(markdownType.toString());
     }
-    markdownToPlatformTypeMap.put(markdownType, result);
+    // the reverse mapping is published first, so a type is never seen without it
     platformToMarkdownTypeMap.put(result, markdownType);
+    markdownToPlatformTypeMap.put(markdownType, result);
     return result;
   }
 
@@ -95,7 +133,7 @@ public class MarkdownElementType extends IElementType {
   }
 
   @Contract("!null -> !null")
-  public synchronized static org.intellij.markdown.IElementType markdownType(@Nullable IElementType platformType) {
+  public static org.intellij.markdown.IElementType markdownType(@Nullable IElementType platformType) {
     if (platformType == null) {
       return null;
     }
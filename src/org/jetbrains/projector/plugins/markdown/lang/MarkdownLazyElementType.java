@@ -24,28 +24,45 @@
 package org.jetbrains.projector.plugins.markdown.lang;
 
 import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
 import com.intellij.lang.PsiBuilder;
 import com.intellij.lang.PsiBuilderFactory;
 import com.intellij.lexer.Lexer;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.tree.ILazyParseableElementType;
+import com.intellij.psi.tree.IReparseableElementType;
 import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
 import org.intellij.markdown.parser.MarkdownParser;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.projector.plugins.markdown.lang.lexer.MarkdownMergingLexer;
 import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager;
 import org.jetbrains.projector.plugins.markdown.lang.parser.PsiBuilderFillingVisitor;
 
-public class MarkdownLazyElementType extends ILazyParseableElementType {
+public class MarkdownLazyElementType extends IReparseableElementType {
   private static final Logger LOG = Logger.getInstance(MarkdownLazyElementType.class);
 
   public MarkdownLazyElementType(@NotNull @NonNls String debugName) {
     super(debugName, MarkdownLanguage.INSTANCE);
   }
 
+  /**
+   * Only top-level paragraphs are reparsed alone: the new text must still be a single paragraph
+   * which isn't indented, so it can't join the blocks around it.
+   */
+  @Override
+  public boolean isParsable(@Nullable ASTNode parent, @NotNull CharSequence buffer, @NotNull Language fileLanguage, @NotNull Project project) {
+    if (this != MarkdownElementTypes.PARAGRAPH || parent == null || parent.getElementType() != MarkdownElementTypes.MARKDOWN_FILE) {
+      return false;
+    }
+
+    return MarkdownReparseableElementType.hasDefaultFlavour(parent)
+           && MarkdownReparseableElementType.startsAtLineStart(buffer)
+           && MarkdownReparseableElementType.findSingleBlock(buffer, this) != null;
+  }
+
   @Override
   protected ASTNode doParseContents(@NotNull ASTNode chameleon, @NotNull PsiElement psi) {
     final Project project = psi.getProject();
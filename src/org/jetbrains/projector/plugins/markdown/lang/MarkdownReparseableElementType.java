@@ -0,0 +1,269 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilderFactory;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.ICustomParsingType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IReparseableElementTypeBase;
+import com.intellij.util.CharTable;
+import org.intellij.markdown.flavours.gfm.GFMElementTypes;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager;
+import org.jetbrains.projector.plugins.markdown.lang.parser.PsiBuilderFillingVisitor;
+
+import java.util.List;
+
+/**
+ * A top-level block which can be reparsed alone when an edit doesn't change its boundaries.
+ * <p>
+ * The new text is accepted only if it's parsed to a single block of the same type covering the whole text
+ * and the block can't take the text after it, e.g. a code fence stays closed.
+ */
+public class MarkdownReparseableElementType extends MarkdownElementType implements ICustomParsingType, IReparseableElementTypeBase {
+
+  public MarkdownReparseableElementType(@NotNull @NonNls String debugName) {
+    super(debugName);
+  }
+
+  public static boolean isReparseable(@NotNull org.intellij.markdown.IElementType markdownType) {
+    return markdownType == org.intellij.markdown.MarkdownElementTypes.CODE_FENCE
+           || markdownType == org.intellij.markdown.MarkdownElementTypes.LIST_ITEM
+           || markdownType == org.intellij.markdown.MarkdownElementTypes.BLOCK_QUOTE
+           || markdownType == GFMElementTypes.TABLE;
+  }
+
+  @Override
+  public boolean isParsable(@Nullable ASTNode parent, @NotNull CharSequence buffer, @NotNull Language fileLanguage, @NotNull Project project) {
+    if (parent == null || !hasDefaultFlavour(parent) || !startsAtLineStart(buffer)) {
+      return false;
+    }
+
+    final boolean isListItem = this == MarkdownElementTypes.LIST_ITEM;
+    final ASTNode topLevelParent = isListItem ? parent.getTreeParent() : parent;
+    if (topLevelParent == null || topLevelParent.getElementType() != MarkdownElementTypes.MARKDOWN_FILE) {
+      return false;
+    }
+    if (isListItem && !hasSameListMarker(parent, buffer)) {
+      return false;
+    }
+
+    // lists, quotes and tables take the following lines unless they are separated by a blank line
+    if (this != MarkdownElementTypes.CODE_FENCE && !areFollowedByBlankLines(topLevelParent, isListItem ? parent.getElementType() : this)) {
+      return false;
+    }
+    // a block after the list indented at least as the item content joins the item even after a blank line
+    if (isListItem && getNextBlockIndent(parent) >= getListItemContentOffset(buffer)) {
+      return false;
+    }
+
+    return findSingleBlock(buffer, this) != null;
+  }
+
+  @NotNull
+  @Override
+  public ASTNode parse(@NotNull CharSequence text, @NotNull CharTable table) {
+    final org.intellij.markdown.ast.ASTNode block = findSingleBlock(text, this);
+    assert block != null : "isParsable() must have been checked";
+
+    final ParserDefinition parserDefinition = LanguageParserDefinitions.INSTANCE.forLanguage(MarkdownLanguage.INSTANCE);
+    final PsiBuilder builder = PsiBuilderFactory.getInstance().createBuilder(parserDefinition, parserDefinition.createLexer(null), text);
+    assert builder.getCurrentOffset() == 0;
+    new PsiBuilderFillingVisitor(builder).visitNode(block);
+    assert builder.eof();
+
+    return builder.getTreeBuilt();
+  }
+
+  /**
+   * Parses {@code buffer} alone and returns its only block of the given type which covers the whole buffer.
+   */
+  @Nullable
+  static org.intellij.markdown.ast.ASTNode findSingleBlock(@NotNull CharSequence buffer, @NotNull IElementType type) {
+    // the block texts change with every keystroke, so they would only evict whole documents from the cache
+    final org.intellij.markdown.ast.ASTNode root = MarkdownParserManager.parseContentWithoutCaching(buffer, MarkdownParserManager.FLAVOUR);
+    final List<org.intellij.markdown.ast.ASTNode> children = root.getChildren();
+    if (children.size() != 1) {
+      return null;
+    }
+
+    org.intellij.markdown.ast.ASTNode block = children.get(0);
+    if (type == MarkdownElementTypes.LIST_ITEM) {
+      final List<org.intellij.markdown.ast.ASTNode> items = block.getChildren();
+      if (items.size() != 1) {
+        return null;
+      }
+      block = items.get(0);
+    }
+
+    if (platformType(block.getType()) != type || block.getStartOffset() != 0 || block.getEndOffset() != buffer.length()) {
+      return null;
+    }
+
+    if (type == MarkdownElementTypes.CODE_FENCE) {
+      final List<org.intellij.markdown.ast.ASTNode> fenceChildren = block.getChildren();
+      if (fenceChildren.isEmpty() || platformType(fenceChildren.get(fenceChildren.size() - 1).getType()) != MarkdownTokenTypes.CODE_FENCE_END) {
+        return null;
+      }
+    }
+
+    return block;
+  }
+
+  static boolean hasDefaultFlavour(@NotNull ASTNode node) {
+    final PsiFile file = node.getPsi().getContainingFile();
+    return file != null && file.getUserData(MarkdownParserManager.FLAVOUR_DESCRIPTION) == MarkdownParserManager.FLAVOUR;
+  }
+
+  /**
+   * Indented text can become a continuation of the previous block.
+   */
+  static boolean startsAtLineStart(@NotNull CharSequence buffer) {
+    return buffer.length() > 0 && !Character.isWhitespace(buffer.charAt(0));
+  }
+
+  /**
+   * A changed bullet or delimiter splits the list.
+   */
+  private static boolean hasSameListMarker(@NotNull ASTNode list, @NotNull CharSequence buffer) {
+    final ASTNode firstItem = list.findChildByType(MarkdownElementTypes.LIST_ITEM);
+    if (firstItem == null) {
+      return false;
+    }
+
+    final ASTNode marker = firstItem.findChildByType(MarkdownTokenTypeSets.LIST_MARKERS);
+    if (marker == null) {
+      return false;
+    }
+
+    final String markerText = marker.getText().trim();
+    if (markerText.isEmpty() || buffer.length() < markerText.length()) {
+      return false;
+    }
+
+    final char markerChar = markerText.charAt(markerText.length() - 1);
+    for (int i = 0; i < buffer.length(); i++) {
+      final char c = buffer.charAt(i);
+      if (!Character.isDigit(c)) {
+        return c == markerChar;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks that every top-level block of {@code blockType} under {@code parent} is followed by a blank line or the end of the file.
+   */
+  private static boolean areFollowedByBlankLines(@NotNull ASTNode parent, @NotNull IElementType blockType) {
+    for (ASTNode child = parent.getFirstChildNode(); child != null; child = child.getTreeNext()) {
+      if (child.getElementType() != blockType) {
+        continue;
+      }
+
+      int lineBreaks = 0;
+      ASTNode next = child.getTreeNext();
+      while (next != null && lineBreaks < 2 && isWhitespace(next.getElementType())) {
+        if (next.getElementType() == MarkdownTokenTypes.EOL) {
+          lineBreaks++;
+        }
+        next = next.getTreeNext();
+      }
+
+      if (next != null && lineBreaks < 2) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the column the content of the list item in {@code buffer} starts at
+   */
+  private static int getListItemContentOffset(@NotNull CharSequence buffer) {
+    int markerEnd = 0;
+    while (markerEnd < buffer.length() && Character.isDigit(buffer.charAt(markerEnd))) {
+      markerEnd++;
+    }
+    markerEnd++;
+
+    int contentStart = markerEnd;
+    while (contentStart < buffer.length() && buffer.charAt(contentStart) == ' ') {
+      contentStart++;
+    }
+
+    // an empty item or an indented code block inside the item: the content is one space after the marker
+    if (contentStart == buffer.length() || buffer.charAt(contentStart) == '\n' || contentStart - markerEnd > 4) {
+      return markerEnd + 1;
+    }
+    return contentStart;
+  }
+
+  /**
+   * @return the indentation of the first line of the block after {@code node} or -1 if there is no such block
+   */
+  private static int getNextBlockIndent(@NotNull ASTNode node) {
+    ASTNode next = node.getTreeNext();
+    while (next != null && isWhitespace(next.getElementType())) {
+      next = next.getTreeNext();
+    }
+    if (next == null) {
+      return -1;
+    }
+
+    final CharSequence text = node.getTreeParent().getChars();
+    int lineStart = next.getStartOffset();
+    while (lineStart > 0 && text.charAt(lineStart - 1) != '\n') {
+      lineStart--;
+    }
+
+    int indent = 0;
+    for (int i = lineStart; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      if (c == ' ') {
+        indent++;
+      }
+      else if (c == '\t') {
+        indent += 4 - indent % 4;
+      }
+      else {
+        break;
+      }
+    }
+    return indent;
+  }
+
+  private static boolean isWhitespace(@NotNull IElementType type) {
+    return type == MarkdownTokenTypes.EOL
+           || type == MarkdownTokenTypes.WHITE_SPACE;
+  }
+}
@@ -32,76 +32,150 @@ import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.projector.plugins.markdown.lang.MarkdownElementType;
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownBlockBoundaries;
 import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Lexes the text into the leaves of the block-level tree.
+ * <p>
+ * A restartable lexer parses the text lazily by parts split at {@link MarkdownBlockBoundaries}, which makes the first
+ * token of every part a safe restart point: it's the only kind of token with the initial state {@code 0}.
+ * The editor highlighter restarts from such a token and stops as soon as it gets the same token after the edit.
+ * The first lex of the whole text, i.e. when the highlighter is created, uses the shared parse result instead,
+ * the PSI parser and the preview usually parse it too; its tokens starting at boundaries are the restart points then.
+ * Later restarts keep parsing by parts, even from the start of the text, so an edit doesn't parse the whole document.
+ */
 public class MarkdownToplevelLexer extends LexerBase {
+  private static final int INITIAL_CAPACITY = 256;
+
   @NotNull final MarkdownFlavourDescriptor myFlavour;
+  private final boolean myRestartable;
+  // true until the first start of a restartable lexer
+  private boolean myInitialLex;
   private CharSequence myBuffer;
-  private int myBufferStart;
   private int myBufferEnd;
-  private List<IElementType> myLexemes;
-  private List<Integer> myStartOffsets;
-  private List<Integer> myEndOffsets;
+  private int myParsedEnd;
+  // the lexemes of the current part, the arrays grow as needed and are reused by the next parts and restarts
+  private short[] myLexemeTypes = new short[INITIAL_CAPACITY];
+  private int[] myStartOffsets = new int[INITIAL_CAPACITY];
+  private int[] myEndOffsets = new int[INITIAL_CAPACITY];
+  private int myLexemeCount;
   private int myLexemeIndex;
+  // the next boundary to mark as a restart point if the whole text is lexed at once, -1 otherwise
+  private int myNextBoundary;
+  private int myState;
 
   public MarkdownToplevelLexer() {
     this(MarkdownParserManager.FLAVOUR);
   }
 
   public MarkdownToplevelLexer(@NotNull MarkdownFlavourDescriptor flavour) {
+    this(flavour, false);
+  }
+
+  public MarkdownToplevelLexer(@NotNull MarkdownFlavourDescriptor flavour, boolean restartable) {
     myFlavour = flavour;
+    myRestartable = restartable;
+    myInitialLex = restartable;
   }
 
   @Override
   public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
     myBuffer = buffer;
-    myBufferStart = startOffset;
     myBufferEnd = endOffset;
+    myParsedEnd = startOffset;
+    myNextBoundary = -1;
+
+    final boolean initialLex = myInitialLex;
+    myInitialLex = false;
+
+    if (initialLex && startOffset == 0 && endOffset == buffer.length()) {
+      myParsedEnd = endOffset;
+      myNextBoundary = 0;
+      myLexemeCount = 0;
+      ASTNodeKt.accept(MarkdownParserManager.parseContent(buffer, myFlavour), new LexerBuildingVisitor(0));
+      myLexemeIndex = 0;
+      updateState();
+      return;
+    }
+
+    parseNextPart();
+  }
+
+  private void parseNextPart() {
+    final int partStart = myParsedEnd;
+    final ASTNode parsedTree;
+    if (myRestartable) {
+      myParsedEnd = MarkdownBlockBoundaries.findNextBoundary(myBuffer, partStart, myBufferEnd);
+      // the parts are small and never parsed again, so they would only evict whole documents from the cache
+      parsedTree = MarkdownParserManager.parseContentWithoutCaching(myBuffer.subSequence(partStart, myParsedEnd), myFlavour);
+    }
+    else {
+      myParsedEnd = myBufferEnd;
+      parsedTree = MarkdownParserManager.parseContent(myBuffer.subSequence(partStart, myParsedEnd), myFlavour);
+    }
 
-    final ASTNode parsedTree = MarkdownParserManager.parseContent(buffer.subSequence(startOffset, endOffset), myFlavour);
-    myLexemes = new ArrayList<>();
-    myStartOffsets = new ArrayList<>();
-    myEndOffsets = new ArrayList<>();
-    ASTNodeKt.accept(parsedTree, new LexerBuildingVisitor());
+    myLexemeCount = 0;
+    ASTNodeKt.accept(parsedTree, new LexerBuildingVisitor(partStart));
     myLexemeIndex = 0;
+    updateState();
+  }
+
+  private void updateState() {
+    if (myNextBoundary < 0 || myLexemeIndex >= myLexemeCount) {
+      myState = myLexemeIndex == 0 ? 0 : 1;
+      return;
+    }
+
+    final int tokenStart = myStartOffsets[myLexemeIndex];
+    while (myNextBoundary < tokenStart && myNextBoundary < myBufferEnd) {
+      myNextBoundary = MarkdownBlockBoundaries.findNextBoundary(myBuffer, myNextBoundary, myBufferEnd);
+    }
+    myState = tokenStart == myNextBoundary ? 0 : 1;
   }
 
   @Override
   public int getState() {
-    return myLexemeIndex;
+    return myState;
   }
 
   @Nullable
   @Override
   public IElementType getTokenType() {
-    if (myLexemeIndex >= myLexemes.size()) {
+    if (myLexemeIndex >= myLexemeCount) {
       return null;
     }
-    return myLexemes.get(myLexemeIndex);
+    return IElementType.find(myLexemeTypes[myLexemeIndex]);
   }
 
   @Override
   public int getTokenStart() {
-    if (myLexemeIndex >= myLexemes.size()) {
+    if (myLexemeIndex >= myLexemeCount) {
       return myBufferEnd;
     }
-    return myBufferStart + myStartOffsets.get(myLexemeIndex);
+    return myStartOffsets[myLexemeIndex];
   }
 
   @Override
   public int getTokenEnd() {
-    if (myLexemeIndex >= myLexemes.size()) {
+    if (myLexemeIndex >= myLexemeCount) {
       return myBufferEnd;
     }
-    return myBufferStart + myEndOffsets.get(myLexemeIndex);
+    return myEndOffsets[myLexemeIndex];
   }
 
   @Override
   public void advance() {
     myLexemeIndex++;
+    if (myLexemeIndex >= myLexemeCount && myParsedEnd < myBufferEnd) {
+      parseNextPart();
+    }
+    else {
+      updateState();
+    }
   }
 
   @NotNull
@@ -115,7 +189,26 @@ public class MarkdownToplevelLexer extends LexerBase {
     return myBufferEnd;
   }
 
+  private void addLexeme(@NotNull IElementType type, int start, int end) {
+    if (myLexemeCount == myLexemeTypes.length) {
+      final int capacity = myLexemeCount * 2;
+      myLexemeTypes = Arrays.copyOf(myLexemeTypes, capacity);
+      myStartOffsets = Arrays.copyOf(myStartOffsets, capacity);
+      myEndOffsets = Arrays.copyOf(myEndOffsets, capacity);
+    }
+
+    myLexemeTypes[myLexemeCount] = type.getIndex();
+    myStartOffsets[myLexemeCount] = start;
+    myEndOffsets[myLexemeCount] = end;
+    myLexemeCount++;
+  }
+
   private class LexerBuildingVisitor extends RecursiveVisitor {
+    private final int myOffset;
+
+    LexerBuildingVisitor(int offset) {
+      myOffset = offset;
+    }
 
     @Override
     public void visitNode(@NotNull ASTNode node) {
@@ -124,9 +217,7 @@ public class MarkdownToplevelLexer extends LexerBase {
       }
       final List<ASTNode> children = node.getChildren();
       if (children.isEmpty()) {
-        myLexemes.add(MarkdownElementType.platformType(node.getType()));
-        myStartOffsets.add(node.getStartOffset());
-        myEndOffsets.add(node.getEndOffset());
+        addLexeme(MarkdownElementType.platformType(node.getType()), myOffset + node.getStartOffset(), myOffset + node.getEndOffset());
       }
       else {
         super.visitNode(node);
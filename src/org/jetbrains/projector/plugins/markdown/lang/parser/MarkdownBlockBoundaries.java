@@ -0,0 +1,212 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds offsets where the text can be split into parts which are parsed to the same tokens separately as together.
+ * <p>
+ * A boundary is the start of a blank line followed by a line which isn't indented and isn't a list item,
+ * so no block before the blank line can continue after it. Boundaries inside code fences and inside HTML blocks
+ * which may contain blank lines ({@code <pre>}, comments, etc.) are skipped.
+ */
+public final class MarkdownBlockBoundaries {
+  private static final String[] RAW_HTML_TAGS = {"script", "pre", "style"};
+
+  private MarkdownBlockBoundaries() {
+  }
+
+  /**
+   * @param start the start of the text or a boundary
+   * @return the first boundary after {@code start} or {@code end} if there is none
+   */
+  public static int findNextBoundary(@NotNull CharSequence buffer, int start, int end) {
+    char fenceChar = 0;
+    int fenceLength = 0;
+    String htmlBlockEnd = null;
+    int blankLineStart = -1;
+
+    int lineStart = start;
+    while (lineStart < end) {
+      int lineEnd = StringUtil.indexOf(buffer, '\n', lineStart, end);
+      if (lineEnd == -1) {
+        lineEnd = end;
+      }
+
+      if (fenceLength > 0) {
+        if (isClosingFence(buffer, lineStart, lineEnd, fenceChar, fenceLength)) {
+          fenceLength = 0;
+        }
+      }
+      else if (htmlBlockEnd != null) {
+        if (StringUtil.indexOf(buffer, htmlBlockEnd, lineStart, lineEnd) != -1) {
+          htmlBlockEnd = null;
+        }
+      }
+      else if (isBlank(buffer, lineStart, lineEnd)) {
+        if (blankLineStart == -1) {
+          blankLineStart = lineStart;
+        }
+        lineStart = lineEnd + 1;
+        continue;
+      }
+      else {
+        if (blankLineStart > start && !isWhitespace(buffer.charAt(lineStart)) && !isListItemStart(buffer, lineStart, lineEnd)) {
+          return blankLineStart;
+        }
+
+        final int contentStart = skipIndent(buffer, lineStart, lineEnd);
+        if (contentStart != -1) {
+          final int openingFenceLength = getOpeningFenceLength(buffer, contentStart, lineEnd);
+          if (openingFenceLength > 0) {
+            fenceChar = buffer.charAt(contentStart);
+            fenceLength = openingFenceLength;
+          }
+          else {
+            htmlBlockEnd = getHtmlBlockEnd(buffer, contentStart, lineEnd);
+            if (htmlBlockEnd != null && StringUtil.indexOf(buffer, htmlBlockEnd, contentStart + 2, lineEnd) != -1) {
+              htmlBlockEnd = null;
+            }
+          }
+        }
+      }
+
+      blankLineStart = -1;
+      lineStart = lineEnd + 1;
+    }
+    return end;
+  }
+
+  /**
+   * @return the offset after up to three spaces of indentation or -1 if the line is indented more
+   */
+  private static int skipIndent(@NotNull CharSequence buffer, int lineStart, int lineEnd) {
+    int i = lineStart;
+    while (i < lineEnd && i - lineStart < 4 && buffer.charAt(i) == ' ') {
+      i++;
+    }
+    return i - lineStart < 4 ? i : -1;
+  }
+
+  private static int getOpeningFenceLength(@NotNull CharSequence buffer, int contentStart, int lineEnd) {
+    final char c = buffer.charAt(contentStart);
+    if (c != '`' && c != '~') {
+      return 0;
+    }
+
+    final int length = countRepeated(buffer, contentStart, lineEnd, c);
+    if (length < 3) {
+      return 0;
+    }
+    if (c == '`' && StringUtil.indexOf(buffer, '`', contentStart + length, lineEnd) != -1) {
+      return 0;
+    }
+    return length;
+  }
+
+  private static boolean isClosingFence(@NotNull CharSequence buffer, int lineStart, int lineEnd, char fenceChar, int fenceLength) {
+    final int contentStart = skipIndent(buffer, lineStart, lineEnd);
+    if (contentStart == -1 || contentStart == lineEnd) {
+      return false;
+    }
+
+    final int length = countRepeated(buffer, contentStart, lineEnd, fenceChar);
+    return length >= fenceLength && isBlank(buffer, contentStart + length, lineEnd);
+  }
+
+  /**
+   * @return the end condition of an HTML block which can contain blank lines
+   */
+  @Nullable
+  private static String getHtmlBlockEnd(@NotNull CharSequence buffer, int contentStart, int lineEnd) {
+    if (buffer.charAt(contentStart) != '<') {
+      return null;
+    }
+
+    if (StringUtil.startsWith(buffer, contentStart, "<!--")) {
+      return "-->";
+    }
+    if (StringUtil.startsWith(buffer, contentStart, "<?")) {
+      return "?>";
+    }
+    if (StringUtil.startsWith(buffer, contentStart, "<![CDATA[")) {
+      return "]]>";
+    }
+    if (contentStart + 2 < lineEnd && buffer.charAt(contentStart + 1) == '!' && Character.isLetter(buffer.charAt(contentStart + 2))) {
+      return ">";
+    }
+
+    for (String tag : RAW_HTML_TAGS) {
+      final int tagEnd = contentStart + 1 + tag.length();
+      if (tagEnd <= lineEnd && StringUtil.startsWithIgnoreCase(buffer.subSequence(contentStart + 1, tagEnd).toString(), tag)
+          && (tagEnd == lineEnd || isWhitespace(buffer.charAt(tagEnd)) || buffer.charAt(tagEnd) == '>')) {
+        return "</" + tag + ">";
+      }
+    }
+    return null;
+  }
+
+  private static boolean isListItemStart(@NotNull CharSequence buffer, int lineStart, int lineEnd) {
+    final char c = buffer.charAt(lineStart);
+    int markerEnd;
+    if (c == '-' || c == '+' || c == '*') {
+      markerEnd = lineStart + 1;
+    }
+    else {
+      markerEnd = lineStart;
+      while (markerEnd < lineEnd && markerEnd - lineStart < 10 && Character.isDigit(buffer.charAt(markerEnd))) {
+        markerEnd++;
+      }
+      if (markerEnd == lineStart || markerEnd == lineEnd || (buffer.charAt(markerEnd) != '.' && buffer.charAt(markerEnd) != ')')) {
+        return false;
+      }
+      markerEnd++;
+    }
+    return markerEnd == lineEnd || isWhitespace(buffer.charAt(markerEnd));
+  }
+
+  private static int countRepeated(@NotNull CharSequence buffer, int start, int end, char c) {
+    int i = start;
+    while (i < end && buffer.charAt(i) == c) {
+      i++;
+    }
+    return i - start;
+  }
+
+  private static boolean isBlank(@NotNull CharSequence buffer, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (!isWhitespace(buffer.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\r';
+  }
+}
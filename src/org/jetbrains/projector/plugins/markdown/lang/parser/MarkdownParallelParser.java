@@ -0,0 +1,121 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.ast.LeafASTNode;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.intellij.markdown.parser.ASTNodeBuilder;
+import org.intellij.markdown.parser.MarkdownParser;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses large texts by parts split at {@link MarkdownBlockBoundaries} in the common fork-join pool.
+ * <p>
+ * No block continues over a boundary, so the top-level blocks of the parts are the top-level blocks of the whole text.
+ * Link reference definitions don't need a pass over all the parts: they don't change the block structure, and
+ * consumers build the link map from the stitched tree, so a definition is visible in every part.
+ */
+final class MarkdownParallelParser {
+  /**
+   * Texts of at least this length are parsed in parallel, a non-positive value disables parallel parsing.
+   */
+  static final int PARALLEL_PARSING_THRESHOLD = Integer.getInteger("markdown.parallel.parsing.threshold", 1024 * 1024);
+
+  private static final int MIN_PART_LENGTH = 64 * 1024;
+
+  private MarkdownParallelParser() {
+  }
+
+  static boolean isApplicable(@NotNull CharSequence buffer) {
+    return PARALLEL_PARSING_THRESHOLD > 0 && buffer.length() >= PARALLEL_PARSING_THRESHOLD;
+  }
+
+  @NotNull
+  static ASTNode parse(@NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+    final List<Integer> partStarts = splitToParts(text);
+    if (partStarts.size() == 1) {
+      return parsePart(text, flavour);
+    }
+
+    final List<ForkJoinTask<ASTNode>> tasks = new ArrayList<>(partStarts.size());
+    for (int i = 0; i < partStarts.size(); i++) {
+      final int partStart = partStarts.get(i);
+      final int partEnd = i + 1 < partStarts.size() ? partStarts.get(i + 1) : text.length();
+      tasks.add(ForkJoinPool.commonPool().submit(() -> parsePart(text.substring(partStart, partEnd), flavour)));
+    }
+
+    final ASTNodeBuilder nodeBuilder = new ASTNodeBuilder(text);
+    final List<ASTNode> children = new ArrayList<>();
+    for (int i = 0; i < tasks.size(); i++) {
+      final int shift = partStarts.get(i);
+      for (ASTNode child : tasks.get(i).join().getChildren()) {
+        children.add(copyShifted(child, shift, nodeBuilder));
+      }
+    }
+    return nodeBuilder.createCompositeNode(MarkdownElementTypes.MARKDOWN_FILE, children);
+  }
+
+  @NotNull
+  private static List<Integer> splitToParts(@NotNull String text) {
+    final List<Integer> partStarts = new ArrayList<>();
+    partStarts.add(0);
+
+    int partStart = 0;
+    int boundary = 0;
+    while (boundary < text.length()) {
+      boundary = MarkdownBlockBoundaries.findNextBoundary(text, boundary, text.length());
+      if (boundary - partStart >= MIN_PART_LENGTH && text.length() - boundary >= MIN_PART_LENGTH) {
+        partStarts.add(boundary);
+        partStart = boundary;
+      }
+    }
+    return partStarts;
+  }
+
+  @NotNull
+  private static ASTNode parsePart(@NotNull String text, @NotNull MarkdownFlavourDescriptor flavour) {
+    return new MarkdownParser(flavour).parse(MarkdownElementTypes.MARKDOWN_FILE, text, false);
+  }
+
+  @NotNull
+  private static ASTNode copyShifted(@NotNull ASTNode node, int shift, @NotNull ASTNodeBuilder nodeBuilder) {
+    final List<ASTNode> children = node.getChildren();
+    if (children.isEmpty()) {
+      return new LeafASTNode(node.getType(), node.getStartOffset() + shift, node.getEndOffset() + shift);
+    }
+
+    final List<ASTNode> shiftedChildren = new ArrayList<>(children.size());
+    for (ASTNode child : children) {
+      shiftedChildren.add(copyShifted(child, shift, nodeBuilder));
+    }
+    return nodeBuilder.createCompositeNode(node.getType(), shiftedChildren);
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.lang.parser;
+
+import com.intellij.openapi.util.text.StringUtil;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.flavours.MarkdownFlavourDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of parse results shared between threads.
+ * <p>
+ * Buffers are looked up by a fingerprint built from the length and a sample of the characters, so a lookup doesn't
+ * hash the whole text. A found buffer is compared with the requested one only if they aren't the same object,
+ * the comparison is done outside the lock so parsers of large documents don't wait for each other.
+ * The cache is bounded both by the number of entries and by the total length of the cached buffers.
+ */
+public class MarkdownParseCache {
+  private static final int SAMPLED_EDGE_LENGTH = 256;
+  private static final int SAMPLES_COUNT = 512;
+
+  private final int myMaxEntries;
+  private final long myMaxTotalLength;
+
+  private final LinkedHashMap<Fingerprint, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private long myTotalLength;
+
+  private long myHits;
+  private long myStampHits;
+  private long myMisses;
+  private long myEvictions;
+
+  public MarkdownParseCache(int maxEntries, long maxTotalLength) {
+    myMaxEntries = maxEntries;
+    myMaxTotalLength = maxTotalLength;
+  }
+
+  @Nullable
+  public ASTNode get(@NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour) {
+    final Fingerprint fingerprint = new Fingerprint(buffer, flavour);
+    final Entry entry;
+    synchronized (this) {
+      entry = myEntries.get(fingerprint);
+    }
+
+    final boolean isHit = entry != null && (entry.myBuffer == buffer || StringUtil.equals(entry.myBuffer, buffer));
+    synchronized (this) {
+      if (isHit) {
+        myHits++;
+      }
+      else {
+        myMisses++;
+      }
+    }
+    return isHit ? entry.myParseResult : null;
+  }
+
+  /**
+   * Counts a result found by the modification stamp of a document without looking into the cache.
+   */
+  public synchronized void recordStampHit() {
+    myStampHits++;
+  }
+
+  public synchronized void put(@NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour, @NotNull ASTNode parseResult) {
+    if (buffer.length() > myMaxTotalLength) {
+      return;
+    }
+
+    final Entry previous = myEntries.put(new Fingerprint(buffer, flavour), new Entry(buffer, parseResult));
+    if (previous != null) {
+      myTotalLength -= previous.myBuffer.length();
+    }
+    myTotalLength += buffer.length();
+
+    final Iterator<Entry> iterator = myEntries.values().iterator();
+    while (myEntries.size() > myMaxEntries || myTotalLength > myMaxTotalLength) {
+      final Entry eldest = iterator.next();
+      iterator.remove();
+      myTotalLength -= eldest.myBuffer.length();
+      myEvictions++;
+    }
+  }
+
+  public synchronized void clear() {
+    myEntries.clear();
+    myTotalLength = 0;
+  }
+
+  public synchronized long getHits() {
+    return myHits;
+  }
+
+  public synchronized long getStampHits() {
+    return myStampHits;
+  }
+
+  public synchronized long getMisses() {
+    return myMisses;
+  }
+
+  public synchronized long getEvictions() {
+    return myEvictions;
+  }
+
+  public synchronized double getHitRate() {
+    final long lookups = myHits + myStampHits + myMisses;
+    return lookups == 0 ? 0.0 : (double)(myHits + myStampHits) / lookups;
+  }
+
+  public synchronized int getSize() {
+    return myEntries.size();
+  }
+
+  public synchronized long getTotalLength() {
+    return myTotalLength;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "MarkdownParseCache{size=" + myEntries.size() + ", totalLength=" + myTotalLength + ", hits=" + myHits +
+           ", stampHits=" + myStampHits + ", misses=" + myMisses + ", evictions=" + myEvictions +
+           ", hitRate=" + String.format("%.2f", getHitRate()) + "}";
+  }
+
+  private static class Entry {
+    @NotNull final CharSequence myBuffer;
+    @NotNull final ASTNode myParseResult;
+
+    Entry(@NotNull CharSequence buffer, @NotNull ASTNode parseResult) {
+      myBuffer = buffer;
+      myParseResult = parseResult;
+    }
+  }
+
+  private static class Fingerprint {
+    private final int myLength;
+    private final int mySampleHash;
+    @NotNull private final MarkdownFlavourDescriptor myFlavour;
+
+    Fingerprint(@NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour) {
+      myLength = buffer.length();
+      mySampleHash = sampleHash(buffer);
+      myFlavour = flavour;
+    }
+
+    /**
+     * Hashes both ends of the buffer, where edits usually happen, and evenly spaced characters in between.
+     */
+    private static int sampleHash(@NotNull CharSequence buffer) {
+      final int length = buffer.length();
+      if (length <= 2 * SAMPLED_EDGE_LENGTH + SAMPLES_COUNT) {
+        return StringUtil.stringHashCode(buffer);
+      }
+
+      int hash = StringUtil.stringHashCode(buffer, 0, SAMPLED_EDGE_LENGTH);
+      hash = 31 * hash + StringUtil.stringHashCode(buffer, length - SAMPLED_EDGE_LENGTH, length);
+
+      final int step = (length - 2 * SAMPLED_EDGE_LENGTH) / SAMPLES_COUNT;
+      for (int i = 0; i < SAMPLES_COUNT; i++) {
+        hash = 31 * hash + buffer.charAt(SAMPLED_EDGE_LENGTH + i * step);
+      }
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Fingerprint that = (Fingerprint)o;
+      return myLength == that.myLength && mySampleHash == that.mySampleHash && myFlavour == that.myFlavour;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * myLength + mySampleHash) + System.identityHashCode(myFlavour);
+    }
+  }
+}
@@ -23,6 +23,7 @@
  */
 package org.jetbrains.projector.plugins.markdown.lang.parser;
 
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.util.Key;
 import org.intellij.markdown.MarkdownElementTypes;
 import org.intellij.markdown.ast.ASTNode;
@@ -37,32 +38,67 @@ public class MarkdownParserManager {
   public static final GFMCommentAwareFlavourDescriptor FLAVOUR = new GFMCommentAwareFlavourDescriptor();
   public static final CodeFencePluginFlavourDescriptor CODE_FENCE_PLUGIN_FLAVOUR = new CodeFencePluginFlavourDescriptor();
 
-  private static final ThreadLocal<ParsingInfo> ourLastParsingResult = new ThreadLocal<>();
+  private static final Key<StampedParsingInfo> PARSING_RESULT = Key.create("Markdown.ParsingResult");
+
+  /**
+   * The lexer, the PSI parser and the preview usually parse the same text on different threads,
+   * so the results are shared between them.
+   */
+  private static final MarkdownParseCache ourCache = new MarkdownParseCache(
+    Integer.getInteger("markdown.parse.cache.size", 16),
+    Long.getLong("markdown.parse.cache.max.chars", 8L * 1024 * 1024)
+  );
 
   public static ASTNode parseContent(@NotNull CharSequence buffer) {
     return parseContent(buffer, FLAVOUR);
   }
 
   public static ASTNode parseContent(@NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour) {
-    final ParsingInfo info = ourLastParsingResult.get();
-    if (info != null && info.myBufferHash == buffer.hashCode() && info.myBuffer.equals(buffer)) {
+    final ASTNode cachedResult = ourCache.get(buffer, flavour);
+    if (cachedResult != null) {
+      return cachedResult;
+    }
+
+    final ASTNode parseResult = parseContentWithoutCaching(buffer, flavour);
+    ourCache.put(buffer, flavour, parseResult);
+    return parseResult;
+  }
+
+  public static ASTNode parseContentWithoutCaching(@NotNull CharSequence buffer, @NotNull MarkdownFlavourDescriptor flavour) {
+    if (MarkdownParallelParser.isApplicable(buffer)) {
+      return MarkdownParallelParser.parse(buffer.toString(), flavour);
+    }
+    return new MarkdownParser(flavour).parse(MarkdownElementTypes.MARKDOWN_FILE, buffer.toString(), false);
+  }
+
+  /**
+   * Parses the document text with {@link #FLAVOUR} reusing the result while the document isn't modified.
+   *
+   * @param text the text of the document at {@code modificationStamp}
+   */
+  public static ASTNode parseContent(@NotNull Document document, @NotNull CharSequence text, long modificationStamp) {
+    final StampedParsingInfo info = document.getUserData(PARSING_RESULT);
+    if (info != null && info.myModificationStamp == modificationStamp) {
+      ourCache.recordStampHit();
       return info.myParseResult;
     }
 
-    final ASTNode parseResult = new MarkdownParser(flavour)
-      .parse(MarkdownElementTypes.MARKDOWN_FILE, buffer.toString(), false);
-    ourLastParsingResult.set(new ParsingInfo(buffer, parseResult));
+    final ASTNode parseResult = parseContent(text, FLAVOUR);
+    document.putUserData(PARSING_RESULT, new StampedParsingInfo(modificationStamp, parseResult));
     return parseResult;
   }
 
-  private static class ParsingInfo {
-    @NotNull final CharSequence myBuffer;
-    final int myBufferHash;
+  @NotNull
+  public static MarkdownParseCache getParseCache() {
+    return ourCache;
+  }
+
+  private static class StampedParsingInfo {
+    final long myModificationStamp;
     @NotNull final ASTNode myParseResult;
 
-    ParsingInfo(@NotNull CharSequence buffer, @NotNull ASTNode parseResult) {
-      myBuffer = buffer;
-      myBufferHash = myBuffer.hashCode();
+    StampedParsingInfo(long modificationStamp, @NotNull ASTNode parseResult) {
+      myModificationStamp = modificationStamp;
       myParseResult = parseResult;
     }
   }
@@ -80,6 +80,8 @@ public class MarkdownCodeFencePluginCache implements Disposable {
   }
 
   public void registerCacheProvider(@NotNull MarkdownCodeFencePluginCacheCollector cacheCollector) {
+    // collectors are equal by file, the latest one replaces the previous one
+    myCodeFencePluginCaches.remove(cacheCollector);
     myCodeFencePluginCaches.add(cacheCollector);
   }
 
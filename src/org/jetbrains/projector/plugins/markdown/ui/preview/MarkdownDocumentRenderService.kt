@@ -0,0 +1,180 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.editor.event.DocumentEvent
+import com.intellij.openapi.editor.event.DocumentListener
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Disposer
+import com.intellij.openapi.util.Key
+import com.intellij.openapi.vfs.VirtualFile
+import java.util.function.Supplier
+
+/**
+ * Renders a document once per version for all the previews of a project showing it, e.g. in several splits, windows
+ * or client sessions. The links are resolved against the project, so every project showing the document has its own service.
+ *
+ * The previews subscribe to the service and must unsubscribe when they are disposed.
+ * The service schedules a single render of the document after a change via [MarkdownPreviewRenderScheduler],
+ * it's run by the subscriber with the highest priority and its page is handed to all the other subscribers.
+ * The service is dropped when the last subscriber unsubscribes.
+ */
+class MarkdownDocumentRenderService private constructor(private val document: Document, file: VirtualFile, project: Project?) {
+
+  private val renderer = MarkdownIncrementalRenderer(file, project)
+
+  private val subscribers = mutableSetOf<Subscriber>()
+
+  private val listenerDisposable = Disposer.newDisposable()
+
+  /**
+   * Chooses the render delays by the render duration of the document, shared by all the subscribers.
+   */
+  val updateScheduler = MarkdownPreviewUpdateScheduler()
+
+  @Volatile
+  private var lastRendered: Rendered? = null
+
+  init {
+    document.addDocumentListener(object : DocumentListener {
+
+      override fun beforeDocumentChange(event: DocumentEvent) {
+        cancelScheduledRender()
+      }
+
+      override fun documentChanged(event: DocumentEvent) {
+        renderer.documentChanged(event)
+        scheduleRender(updateScheduler.nextDelayMs())
+      }
+    }, listenerDisposable)
+  }
+
+  /**
+   * Renders the document after [delayMs] for all the subscribers, replacing the render scheduled before.
+   */
+  fun scheduleRender(delayMs: Long) {
+    MarkdownPreviewRenderScheduler.schedule(this, delayMs, Supplier(::getRenderPriority), Runnable(::runScheduledRender))
+  }
+
+  fun cancelScheduledRender() = MarkdownPreviewRenderScheduler.cancel(this)
+
+  fun isRenderPending(): Boolean = MarkdownPreviewRenderScheduler.isPending(this)
+
+  private fun getRenderPriority(): MarkdownPreviewRenderScheduler.Priority {
+    return synchronized(LOCK) { subscribers.mapNotNull { it.renderPriority }.min() } ?: MarkdownPreviewRenderScheduler.Priority.HIDDEN
+  }
+
+  private fun runScheduledRender() {
+    val subscriber = synchronized(LOCK) { subscribers.filter { it.renderPriority != null }.minBy { it.renderPriority!! } } ?: return
+
+    subscriber.renderScheduled()
+  }
+
+  /**
+   * Is always run from pooled thread, the page is handed to the other subscribers too
+   *
+   * @return the page of the current document version, [RenderResult.isRendered] is false if it has been rendered before
+   */
+  fun render(subscriber: Subscriber): RenderResult {
+    // the other subscribers are notified under the lock, so they don't get an older page after a newer one
+    synchronized(renderer) {
+      val cached = lastRendered?.takeIf { it.modificationStamp == document.modificationStamp }
+      val html = cached?.html ?: renderer.render(document).also { lastRendered = Rendered(renderer.renderedModificationStamp, it) }
+
+      val otherSubscribers = synchronized(LOCK) { subscribers.filter { it !== subscriber } }
+      otherSubscribers.forEach { it.renderedHtmlChanged(html) }
+
+      return RenderResult(html, cached == null)
+    }
+  }
+
+  interface Subscriber {
+
+    /**
+     * Is read by the render workers, so it must not touch Swing. Null if the subscriber doesn't show the preview now.
+     */
+    val renderPriority: MarkdownPreviewRenderScheduler.Priority?
+
+    /**
+     * Is called from pooled thread when a scheduled render of the document is run by this subscriber.
+     */
+    fun renderScheduled()
+
+    /**
+     * Is called from pooled thread when another subscriber has rendered the document, the page may be the one it already has.
+     */
+    fun renderedHtmlChanged(renderedHtml: MarkdownRenderedHtml)
+  }
+
+  /**
+   * @param isRendered false if [html] has been rendered by an earlier call, so its timing says nothing about the render duration
+   */
+  class RenderResult(val html: MarkdownRenderedHtml, val isRendered: Boolean)
+
+  private class Rendered(val modificationStamp: Long, val html: MarkdownRenderedHtml)
+
+  companion object {
+
+    private val SERVICES_KEY = Key.create<MutableMap<Project?, MarkdownDocumentRenderService>>("MarkdownDocumentRenderServices")
+
+    private val LOCK = Any()
+
+    @JvmStatic
+    fun subscribe(document: Document, file: VirtualFile, project: Project?, subscriber: Subscriber): MarkdownDocumentRenderService {
+      synchronized(LOCK) {
+        val services = document.getUserData(SERVICES_KEY) ?: mutableMapOf<Project?, MarkdownDocumentRenderService>().also {
+          document.putUserData(SERVICES_KEY, it)
+        }
+        val service = services.getOrPut(project) { MarkdownDocumentRenderService(document, file, project) }
+
+        service.subscribers.add(subscriber)
+        return service
+      }
+    }
+
+    @JvmStatic
+    fun unsubscribe(document: Document, project: Project?, subscriber: Subscriber) {
+      val droppedService = synchronized(LOCK) {
+        val services = document.getUserData(SERVICES_KEY) ?: return
+        val service = services[project] ?: return
+
+        service.subscribers.remove(subscriber)
+        if (service.subscribers.isNotEmpty()) {
+          return
+        }
+
+        services.remove(project)
+        if (services.isEmpty()) {
+          document.putUserData(SERVICES_KEY, null)
+        }
+        service
+      }
+
+      // the scheduler asks the priority under its own lock, so it's not called under LOCK
+      Disposer.dispose(droppedService.listenerDisposable)
+      droppedService.cancelScheduledRender()
+    }
+  }
+}
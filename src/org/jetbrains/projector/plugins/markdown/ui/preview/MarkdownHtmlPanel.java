@@ -46,6 +46,13 @@ public interface MarkdownHtmlPanel extends Disposable {
 
   void setHtml(@NotNull String html);
 
+  /**
+   * Sets the page split by top-level blocks, so that the panel can update only the changed blocks.
+   */
+  default void setHtml(@NotNull MarkdownRenderedHtml renderedHtml) {
+    setHtml(renderedHtml.getHtml());
+  }
+
   void setCSS(@Nullable String inlineCss, String... fileUris);
 
   void render();
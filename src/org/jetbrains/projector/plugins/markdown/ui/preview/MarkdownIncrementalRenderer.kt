@@ -0,0 +1,381 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.editor.event.DocumentEvent
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.util.containers.SLRUMap
+import org.intellij.markdown.IElementType
+import org.intellij.markdown.MarkdownElementTypes
+import org.intellij.markdown.MarkdownTokenTypes
+import org.intellij.markdown.ast.ASTNode
+import org.intellij.markdown.html.HtmlGenerator
+import org.intellij.markdown.parser.LinkMap
+import org.intellij.markdown.parser.MarkdownParser
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownPreviewMetrics.Stage
+import java.io.File
+
+/**
+ * Renders a Markdown document to HTML block by block.
+ *
+ * The renderer remembers the top-level blocks of the last rendered text together with their source ranges and HTML.
+ * Document changes reported via [documentChanged] mark the blocks they touch, and the next [render] call reparses only
+ * the region around these blocks, bounded by blank lines which can't be affected by the edit.
+ * Everything else is spliced into the output from the cache.
+ *
+ * The HTML of every block is sanitized right after it's generated, so the output is ready to be shown.
+ * Sanitized HTML is memoized by the hash of the generated HTML, so re-rendered blocks which haven't changed
+ * aren't sanitized again.
+ */
+class MarkdownIncrementalRenderer(private val file: VirtualFile, private val project: Project?) {
+
+  private val pendingChanges = mutableListOf<Change>()
+  private var pendingChangesOverflow = false
+
+  private val blocks = mutableListOf<Block>()
+  private var textLength = 0
+  private var linkMap: LinkMap? = null
+  private val sanitizedHtmlCache = SLRUMap<String, String>(SANITIZED_HTML_CACHE_SIZE, SANITIZED_HTML_CACHE_SIZE)
+
+  /**
+   * The modification stamp of the document text rendered last.
+   */
+  var renderedModificationStamp = -1L
+    private set
+
+  fun documentChanged(event: DocumentEvent) {
+    synchronized(pendingChanges) {
+      if (pendingChanges.size < MAX_PENDING_CHANGES) {
+        pendingChanges.add(Change(event.offset, event.oldLength, event.newLength))
+      }
+      else {
+        pendingChangesOverflow = true
+      }
+    }
+  }
+
+  fun invalidate() {
+    synchronized(pendingChanges) {
+      pendingChangesOverflow = true
+    }
+  }
+
+  /**
+   * Is always run from pooled thread.
+   *
+   * The render checks the current progress indicator between blocks, so it can be cancelled when the document changes again.
+   * The blocks are replaced only when all of them are rendered, a cancelled render leaves them ready for the next one.
+   */
+  @Synchronized
+  fun render(document: Document): MarkdownRenderedHtml {
+    // document listeners are called under write action, so the text and the changes are consistent with each other
+    val snapshot = MarkdownPreviewMetrics.measure(Stage.GET_TEXT) {
+      ReadAction.compute<Snapshot, RuntimeException> {
+        Snapshot(document.immutableCharSequence, document.modificationStamp, drainPendingChanges())
+      }
+    }
+    val text = snapshot.text
+    val changes = snapshot.changes
+
+    if (changes == null || linkMap == null || blocks.isEmpty()) {
+      renderAllOrInvalidate(document, snapshot)
+    }
+    else {
+      changes.forEach(::applyChange)
+
+      if (textLength != text.length || !renderDirtyBlocks(text)) {
+        renderAllOrInvalidate(document, snapshot)
+      }
+    }
+
+    // the registered collector is never changed, the cache cleanup reads it on another thread
+    val cacheCollector = MarkdownCodeFencePluginCacheCollector(file)
+    blocks.forEach { block -> block.cachedFiles.forEach(cacheCollector::addAliveCachedFile) }
+    MarkdownCodeFencePluginCache.getInstance().registerCacheProvider(cacheCollector)
+    renderedModificationStamp = snapshot.modificationStamp
+
+    return MarkdownRenderedHtml(blocks.map(Block::toHtmlBlock), textLength)
+  }
+
+  private fun drainPendingChanges(): List<Change>? {
+    synchronized(pendingChanges) {
+      val result = if (pendingChangesOverflow) null else pendingChanges.toList()
+      pendingChanges.clear()
+      pendingChangesOverflow = false
+      return result
+    }
+  }
+
+  private fun applyChange(change: Change) {
+    val changeEnd = change.offset + change.oldLength
+    val shift = change.newLength - change.oldLength
+
+    for (block in blocks) {
+      when {
+        block.end < change.offset -> Unit
+
+        block.start > changeEnd -> {
+          block.start += shift
+          block.end += shift
+        }
+
+        else -> {
+          block.dirty = true
+          block.start = minOf(block.start, change.offset)
+          block.end = if (block.end >= changeEnd) block.end + shift else change.offset + change.newLength
+        }
+      }
+    }
+
+    textLength += shift
+  }
+
+  /**
+   * The changes of the snapshot are lost if the render is cancelled, so the next render has to start from scratch.
+   */
+  private fun renderAllOrInvalidate(document: Document, snapshot: Snapshot) {
+    try {
+      renderAll(document, snapshot)
+    }
+    catch (e: ProcessCanceledException) {
+      invalidate()
+      throw e
+    }
+  }
+
+  private fun renderAll(document: Document, snapshot: Snapshot) {
+    val text = snapshot.text
+    val markdownText = text.toString()
+    val parsedTree = MarkdownPreviewMetrics.measure(Stage.PARSE) {
+      MarkdownUtil.expandInlines(markdownText, MarkdownParserManager.parseContent(document, text, snapshot.modificationStamp))
+    }
+    ProgressManager.checkCanceled()
+
+    val newLinkMap = LinkMap.buildLinkMap(parsedTree, markdownText)
+    val newBlocks = renderBlocks(markdownText, parsedTree, 0, newLinkMap)
+
+    linkMap = newLinkMap
+    blocks.clear()
+    blocks.addAll(newBlocks)
+    textLength = text.length
+  }
+
+  /**
+   * @return false if the changed region can't be rendered separately from the rest of the document
+   */
+  private fun renderDirtyBlocks(text: CharSequence): Boolean {
+    val firstDirty = blocks.indexOfFirst { it.dirty }
+    if (firstDirty == -1) {
+      return true
+    }
+    val lastDirty = blocks.indexOfLast { it.dirty }
+
+    var from = firstDirty
+    while (from > 0 && !isSafeRegionStart(text, from)) {
+      --from
+    }
+
+    var to = lastDirty + 1
+    while (to < blocks.size && !isSafeRegionEnd(text, to)) {
+      ++to
+    }
+
+    val replacedBlocks = blocks.subList(from, to)
+    if (replacedBlocks.any { it.type == MarkdownElementTypes.LINK_DEFINITION }) {
+      return false  // link definitions affect links in the whole document
+    }
+
+    val regionStart = if (from == 0) 0 else blocks[from].start
+    val regionEnd = if (to == blocks.size) text.length else blocks[to].start
+    val regionText = text.subSequence(regionStart, regionEnd).toString()
+    val parsedTree = MarkdownPreviewMetrics.measure(Stage.PARSE) {
+      MarkdownParser(MarkdownParserManager.FLAVOUR).buildMarkdownTreeFromString(regionText)
+    }
+    ProgressManager.checkCanceled()
+
+    if (!parsedTree.children.all(::isSelfContained)) {
+      return false
+    }
+
+    val newBlocks = renderBlocks(regionText, parsedTree, regionStart, linkMap!!)
+    replacedBlocks.clear()
+    replacedBlocks.addAll(newBlocks)
+
+    return true
+  }
+
+  private fun renderBlocks(markdownText: String, parsedTree: ASTNode, textOffset: Int, linkMap: LinkMap): List<Block> {
+    val cacheCollector = BlockCacheCollector(file)
+    val providers = MarkdownUtil.createHtmlGeneratingProviders(file, linkMap, project, cacheCollector)
+
+    var generationNanos = 0L
+    var sanitizationNanos = 0L
+
+    val blocks = parsedTree.children.map {
+      ProgressManager.checkCanceled()
+      cacheCollector.blockFiles.clear()
+      val start = System.nanoTime()
+      val html = MarkdownRenderedHtml.shiftSrcPositions(HtmlGenerator(markdownText, it, providers, true).generateHtml(), -it.startOffset)
+      val generated = System.nanoTime()
+      ProgressManager.checkCanceled()
+      val sanitizedHtml = sanitize(html)
+      generationNanos += generated - start
+      sanitizationNanos += System.nanoTime() - generated
+
+      Block(textOffset + it.startOffset, textOffset + it.endOffset, it.type, sanitizedHtml, cacheCollector.blockFiles.toList())
+    }
+
+    MarkdownPreviewMetrics.record(Stage.HTML_GENERATION, generationNanos)
+    MarkdownPreviewMetrics.record(Stage.SANITIZATION, sanitizationNanos)
+
+    return blocks
+  }
+
+  private fun sanitize(html: String): String {
+    if (html.isBlank()) {
+      return html
+    }
+
+    val hash = MarkdownUtil.md5(html, SANITIZED_HTML_KEY)
+
+    return sanitizedHtmlCache.get(hash) ?: MarkdownPreviewFileEditor.SANITIZER_VALUE.value.sanitize(html).also {
+      sanitizedHtmlCache.put(hash, it)
+    }
+  }
+
+  /**
+   * The region can start before the block at [index] if the preceding text ends with a blank line and
+   * no preceding block can continue after it whatever the region contains.
+   */
+  private fun isSafeRegionStart(text: CharSequence, index: Int): Boolean {
+    if (!isPrecededByBlankLine(text, blocks[index].start)) {
+      return false
+    }
+
+    val previousContent = blocks.subList(0, index).lastOrNull { !isWhitespace(it.type) } ?: return true
+
+    return previousContent.type !in CONTINUABLE_AFTER_BLANK_LINE_TYPES
+  }
+
+  /**
+   * The region can end before the block at [index] if the block is separated from the region by a blank line and
+   * can't become a continuation of the region whatever the region contains.
+   */
+  private fun isSafeRegionEnd(text: CharSequence, index: Int): Boolean {
+    val block = blocks[index]
+
+    if (block.type in CONTINUABLE_AFTER_BLANK_LINE_TYPES || block.start >= text.length) {
+      return false
+    }
+
+    return !text[block.start].isWhitespace() && isPrecededByBlankLine(text, block.start)
+  }
+
+  /**
+   * @param cachedFiles the code fence plugin files, e.g. diagrams, the block shows
+   */
+  private class Block(var start: Int, var end: Int, val type: IElementType, val html: String, val cachedFiles: List<File>) {
+
+    var dirty = false
+
+    private var htmlBlock: MarkdownHtmlBlock? = null
+
+    fun toHtmlBlock(): MarkdownHtmlBlock {
+      return (htmlBlock?.withSrcOffset(start) ?: MarkdownHtmlBlock(start, html)).also { htmlBlock = it }
+    }
+  }
+
+  /**
+   * Collects the cached files of the block being rendered.
+   */
+  private class BlockCacheCollector(file: VirtualFile) : MarkdownCodeFencePluginCacheCollector(file) {
+
+    val blockFiles = mutableListOf<File>()
+
+    override fun addAliveCachedFile(file: File) {
+      super.addAliveCachedFile(file)
+      blockFiles.add(file)
+    }
+  }
+
+  private class Snapshot(val text: CharSequence, val modificationStamp: Long, val changes: List<Change>?)
+
+  private class Change(val offset: Int, val oldLength: Int, val newLength: Int)
+
+  companion object {
+
+    private const val MAX_PENDING_CHANGES = 1000
+
+    private const val SANITIZED_HTML_CACHE_SIZE = 1024
+    private const val SANITIZED_HTML_KEY = "markdown-sanitized-html"
+
+    /**
+     * Blocks which take the following lines after a blank line if the lines are indented (lists and indented code)
+     * or start with a list marker (lists).
+     */
+    private val CONTINUABLE_AFTER_BLANK_LINE_TYPES = setOf(
+      MarkdownElementTypes.UNORDERED_LIST,
+      MarkdownElementTypes.ORDERED_LIST,
+      MarkdownElementTypes.CODE_BLOCK
+    )
+
+    private fun isWhitespace(type: IElementType): Boolean {
+      return type == MarkdownTokenTypes.EOL || type == MarkdownTokenTypes.WHITE_SPACE
+    }
+
+    /**
+     * Blocks which can't capture the text after them when rendered separately: open code fences and HTML blocks
+     * span blank lines, link definitions change the rendering of the whole document.
+     */
+    private fun isSelfContained(node: ASTNode): Boolean = when (node.type) {
+      MarkdownElementTypes.HTML_BLOCK, MarkdownElementTypes.LINK_DEFINITION -> false
+
+      MarkdownElementTypes.CODE_FENCE -> node.children.lastOrNull()?.type == MarkdownTokenTypes.CODE_FENCE_END
+
+      else -> true
+    }
+
+    private fun isPrecededByBlankLine(text: CharSequence, offset: Int): Boolean {
+      if (offset == 0) {
+        return true
+      }
+      if (text[offset - 1] != '\n') {
+        return false
+      }
+
+      var i = offset - 2
+      while (i >= 0 && (text[i] == ' ' || text[i] == '\t')) {
+        --i
+      }
+
+      return i < 0 || text[i] == '\n'
+    }
+  }
+}
@@ -32,15 +32,21 @@ import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
 import com.intellij.openapi.fileEditor.*;
 import com.intellij.openapi.fileEditor.impl.EditorHistoryManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.NotNullLazyValue;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.ui.JBSplitter;
 import com.intellij.util.Alarm;
 import com.intellij.util.messages.MessageBusConnection;
 import com.intellij.util.ui.StartupUiUtil;
+import com.intellij.util.ui.UIUtil;
 import org.intellij.markdown.html.HtmlGenerator;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -56,9 +62,10 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
+import java.awt.event.HierarchyEvent;
 import java.beans.PropertyChangeListener;
 
-public class MarkdownPreviewFileEditor extends UserDataHolderBase implements FileEditor {
+public class MarkdownPreviewFileEditor extends UserDataHolderBase implements FileEditor, MarkdownDocumentRenderService.Subscriber {
   final static NotNullLazyValue<PolicyFactory> SANITIZER_VALUE = new NotNullLazyValue<PolicyFactory>() {
     @NotNull
     @Override
@@ -90,7 +97,6 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
                .toFactory());
     }
   };
-  private final static long PARSING_CALL_TIMEOUT_MS = 50L;
   private final static long RENDERING_DELAY_MS = 20L;
   @NotNull
   private final JPanel myHtmlPanelWrapper;
@@ -101,9 +107,9 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
   @Nullable
   private final Document myDocument;
   @NotNull
-  private final Alarm myPooledAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
-  @NotNull
   private final Alarm mySwingAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+  @Nullable
+  private final MarkdownDocumentRenderService myRenderService;
   private final Object REQUESTS_LOCK = new Object();
   @Nullable
   private MarkdownHtmlPanel myPanel;
@@ -114,29 +120,38 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
   @Nullable
   private Runnable myLastHtmlOrRefreshRequest = null;
 
+  @Nullable
+  private ProgressIndicator myRenderIndicator = null;
+
   private volatile int myLastScrollOffset;
+  /**
+   * Is updated on EDT when the preview is shown, hidden or the focus moves, and is read by the render workers
+   */
+  @Nullable
+  private volatile MarkdownPreviewRenderScheduler.Priority myRenderPriority = null;
   @NotNull
-  private String myLastRenderedHtml = "";
+  private final PropertyChangeListener myFocusOwnerListener = e -> updateRenderPriority();
+  @Nullable
+  private MarkdownRenderedHtml myLastRenderedHtml = null;
+  /**
+   * The page last passed to the panel or being passed to it, guarded by REQUESTS_LOCK
+   */
+  @Nullable
+  private MarkdownRenderedHtml myLastReceivedHtml = null;
 
   public MarkdownPreviewFileEditor(@NotNull Project project, @NotNull VirtualFile file) {
     myProject = project;
     myFile = file;
     myDocument = FileDocumentManager.getInstance().getDocument(myFile);
+    myRenderService = myDocument != null ? MarkdownDocumentRenderService.subscribe(myDocument, myFile, myProject, this) : null;
 
     if (myDocument != null) {
       myDocument.addDocumentListener(new DocumentListener() {
 
-        @Override
-        public void beforeDocumentChange(@NotNull DocumentEvent e) {
-          myPooledAlarm.cancelAllRequests();
-        }
-
         @Override
         public void documentChanged(@NotNull final DocumentEvent e) {
-          myPooledAlarm.addRequest(() -> {
-            //myLastScrollOffset = e.getOffset();
-            updateHtml(true);
-          }, PARSING_CALL_TIMEOUT_MS);
+          // the render service schedules the render of the new version
+          cancelRender();
         }
       }, this);
     }
@@ -167,6 +182,13 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
       }
     });
 
+    myHtmlPanelWrapper.addHierarchyListener(e -> {
+      if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+        updateRenderPriority();
+      }
+    });
+    KeyboardFocusManager.getCurrentKeyboardFocusManager().addPropertyChangeListener("focusOwner", myFocusOwnerListener);
+
     if (isPreviewShown(project, file)) {
       attachHtmlPanel();
     }
@@ -183,7 +205,7 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
 
     // Do not scroll if html update request is online
     // This will restrain preview from glitches on editing
-    if (!myPooledAlarm.isEmpty()) {
+    if (myRenderService != null && myRenderService.isRenderPending()) {
       myLastScrollOffset = offset;
       return;
     }
@@ -277,6 +299,11 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
 
   @Override
   public void dispose() {
+    KeyboardFocusManager.getCurrentKeyboardFocusManager().removePropertyChangeListener("focusOwner", myFocusOwnerListener);
+    cancelRender();
+    if (myDocument != null) {
+      MarkdownDocumentRenderService.unsubscribe(myDocument, myProject, this);
+    }
     if (myPanel == null) {
       return;
     }
@@ -319,29 +346,84 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
       return;
     }
 
-    if (!myFile.isValid() || myDocument == null || Disposer.isDisposed(this)) {
+    if (!myFile.isValid() || myRenderService == null || Disposer.isDisposed(this)) {
       return;
     }
 
-    final String html = MarkdownUtil.INSTANCE.generateMarkdownHtml(myFile, myDocument.getText(), myProject);
+    final ProgressIndicator indicator = new EmptyProgressIndicator();
+    synchronized (REQUESTS_LOCK) {
+      myRenderIndicator = indicator;
+    }
+
+    myRenderService.getUpdateScheduler().renderStarted();
+    final long renderStart = System.nanoTime();
+    final MarkdownDocumentRenderService.RenderResult result;
+    try {
+      result = ProgressManager.getInstance().runProcess(() -> myRenderService.render(this), indicator);
+    }
+    catch (ProcessCanceledException e) {
+      MarkdownPreviewMetrics.recordCancelledRender(System.nanoTime() - renderStart);
+      return;
+    }
+    // a page rendered by another preview comes back right away or after waiting for that render, neither is our render time
+    if (result.isRendered()) {
+      final long renderNanos = System.nanoTime() - renderStart;
+      myRenderService.getUpdateScheduler().renderFinished(renderNanos);
+      MarkdownPreviewMetrics.recordRender(myFile, result.getHtml(), renderNanos);
+    }
 
     // EA-75860: The lines to the top may be processed slowly; Since we're in pooled thread, we can be disposed already.
     if (!myFile.isValid() || Disposer.isDisposed(this)) {
       return;
     }
 
+    showRenderedHtml(result.getHtml(), indicator, preserveScrollOffset);
+  }
+
+  @Nullable
+  @Override
+  public MarkdownPreviewRenderScheduler.Priority getRenderPriority() {
+    return myRenderPriority;
+  }
+
+  @Override
+  public void renderScheduled() {
+    updateHtml(true);
+  }
+
+  @Override
+  public void renderedHtmlChanged(@NotNull MarkdownRenderedHtml renderedHtml) {
+    if (myPanel == null || !myFile.isValid() || Disposer.isDisposed(this)) {
+      return;
+    }
+
+    showRenderedHtml(renderedHtml, null, true);
+  }
+
+  /**
+   * @param indicator the indicator of the render, the HTML isn't shown if it's cancelled
+   */
+  private void showRenderedHtml(@NotNull MarkdownRenderedHtml renderedHtml,
+                                @Nullable ProgressIndicator indicator,
+                                boolean preserveScrollOffset) {
     synchronized (REQUESTS_LOCK) {
+      // the page has been already handed over by the render of another preview
+      if (renderedHtml == myLastReceivedHtml) {
+        return;
+      }
+      myLastReceivedHtml = renderedHtml;
+
       if (myLastHtmlOrRefreshRequest != null) {
         mySwingAlarm.cancelRequest(myLastHtmlOrRefreshRequest);
       }
       myLastHtmlOrRefreshRequest = () -> {
-        if (myPanel == null) {
+        // the document has changed again, the next render will set the HTML
+        if (myPanel == null || indicator != null && indicator.isCanceled()) {
           return;
         }
 
-        final String currentHtml = "<html><head></head>" + SANITIZER_VALUE.getValue().sanitize(html) + "</html>";
-        if (!currentHtml.equals(myLastRenderedHtml)) {
-          myLastRenderedHtml = currentHtml;
+        if (renderedHtml != myLastRenderedHtml) {
+          myLastRenderedHtml = renderedHtml;
           myPanel.setHtml(myLastRenderedHtml);
 
           if (preserveScrollOffset) {
@@ -354,7 +436,16 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
           myLastHtmlOrRefreshRequest = null;
         }
       };
-      mySwingAlarm.addRequest(myLastHtmlOrRefreshRequest, RENDERING_DELAY_MS, ModalityState.stateForComponent(getComponent()));
+      mySwingAlarm.addRequest(myLastHtmlOrRefreshRequest, 0, ModalityState.stateForComponent(getComponent()));
+    }
+  }
+
+  private void cancelRender() {
+    synchronized (REQUESTS_LOCK) {
+      if (myRenderIndicator != null) {
+        myRenderIndicator.cancel();
+        myRenderIndicator = null;
+      }
     }
   }
 
@@ -363,6 +454,7 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
       myHtmlPanelWrapper.remove(myPanel.getComponent());
       Disposer.dispose(myPanel);
       myPanel = null;
+      updateRenderPriority();
     }
   }
 
@@ -372,13 +464,38 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
     myHtmlPanelWrapper.add(myPanel.getComponent(), BorderLayout.CENTER);
     myHtmlPanelWrapper.repaint();
     updatePanelCssSettings(myPanel, settings.getMarkdownCssSettings());
-    myLastRenderedHtml = "";
+    updateRenderPriority();
+    myLastRenderedHtml = null;
+    synchronized (REQUESTS_LOCK) {
+      myLastReceivedHtml = null;
+    }
     updateHtmlPooled();
   }
 
   private void updateHtmlPooled() {
-    myPooledAlarm.cancelAllRequests();
-    myPooledAlarm.addRequest(() -> updateHtml(true), 0);
+    if (myRenderService != null) {
+      myRenderService.scheduleRender(0);
+    }
+  }
+
+  /**
+   * Is called on EDT, the render workers only read the result
+   */
+  private void updateRenderPriority() {
+    if (myPanel == null) {
+      myRenderPriority = null;
+      return;
+    }
+
+    if (!myHtmlPanelWrapper.isShowing()) {
+      myRenderPriority = MarkdownPreviewRenderScheduler.Priority.HIDDEN;
+      return;
+    }
+
+    Component splitter = SwingUtilities.getAncestorOfClass(JBSplitter.class, myHtmlPanelWrapper);
+    myRenderPriority = UIUtil.isFocusAncestor(splitter != null ? splitter : myHtmlPanelWrapper)
+                       ? MarkdownPreviewRenderScheduler.Priority.FOCUSED
+                       : MarkdownPreviewRenderScheduler.Priority.VISIBLE;
   }
 
   private static void updatePanelCssSettings(@NotNull MarkdownHtmlPanel panel, @NotNull final MarkdownCssSettings cssSettings) {
@@ -423,7 +540,12 @@ public class MarkdownPreviewFileEditor extends UserDataHolderBase implements Fil
             attachHtmlPanel();
           }
 
-          myPanel.setHtml(myLastRenderedHtml);
+          if (myLastRenderedHtml != null) {
+            myPanel.setHtml(myLastRenderedHtml);
+          }
+          else {
+            myPanel.setHtml("");
+          }
           updatePanelCssSettings(myPanel, settings.getMarkdownCssSettings());
         }
       }, 0, ModalityState.stateForComponent(getComponent()));
@@ -0,0 +1,222 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.vfs.VirtualFile
+import org.jetbrains.projector.plugins.markdown.lang.parser.MarkdownParserManager
+import org.jetbrains.projector.plugins.markdown.ui.preview.projector.InlinedImagesCache
+import java.lang.management.ManagementFactory
+import java.util.*
+import javax.management.ObjectName
+
+/**
+ * Durations of the preview stages, the last [HISTORY_SIZE] durations of every stage are kept for percentiles.
+ *
+ * The metrics are available via JMX as `org.jetbrains.projector.markdown:type=PreviewMetrics`
+ * and via the internal Dump Markdown Preview Metrics action.
+ */
+object MarkdownPreviewMetrics : MarkdownPreviewMetricsMBean {
+
+  private const val HISTORY_SIZE = 1024
+
+  private val SLOW_RENDER_MS = java.lang.Long.getLong("markdown.preview.slow.render.ms", 500L)
+
+  private val LOG = Logger.getInstance(MarkdownPreviewMetrics::class.java)
+
+  private val histograms = EnumMap<Stage, Histogram>(Stage::class.java).apply {
+    Stage.values().forEach { put(it, Histogram()) }
+  }
+
+  /**
+   * The number of renders aborted because the document has changed again.
+   */
+  var cancelledRenders = 0L
+    @Synchronized get
+    private set
+
+  /**
+   * The time spent by the cancelled renders.
+   */
+  var wastedRenderNanos = 0L
+    @Synchronized get
+    private set
+
+  init {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, ObjectName("org.jetbrains.projector.markdown:type=PreviewMetrics"))
+    }
+    catch (t: Throwable) {
+      LOG.debug("Can't register preview metrics MBean", t)
+    }
+  }
+
+  @JvmStatic
+  fun record(stage: Stage, nanos: Long) {
+    histograms.getValue(stage).add(nanos)
+  }
+
+  inline fun <T> measure(stage: Stage, block: () -> T): T {
+    val start = System.nanoTime()
+
+    try {
+      return block()
+    }
+    finally {
+      record(stage, System.nanoTime() - start)
+    }
+  }
+
+  /**
+   * Records the whole render of [file] and logs it if it's slow.
+   */
+  @JvmStatic
+  fun recordRender(file: VirtualFile, renderedHtml: MarkdownRenderedHtml, nanos: Long) {
+    record(Stage.RENDER, nanos)
+
+    val millis = nanos / 1_000_000
+    if (millis >= SLOW_RENDER_MS) {
+      LOG.info("Slow preview render of ${file.path}: $millis ms, ${renderedHtml.srcLength} chars, ${renderedHtml.blocks.size} blocks")
+    }
+  }
+
+  @JvmStatic
+  @Synchronized
+  fun recordCancelledRender(nanos: Long) {
+    cancelledRenders++
+    wastedRenderNanos += nanos
+  }
+
+  fun getPercentileMillis(stage: Stage, percentile: Double): Double = histograms.getValue(stage).percentile(percentile) / 1e6
+
+  override fun getStageSummaries(): Array<String> = Stage.values().map(::summary).toTypedArray()
+
+  override fun getCancelledRenderCount(): Long = cancelledRenders
+
+  override fun getWastedRenderMillis(): Long = wastedRenderNanos / 1_000_000
+
+  override fun getParseCacheSummary(): String = MarkdownParserManager.getParseCache().toString()
+
+  override fun getImageCacheSummaries(): Array<String> = InlinedImagesCache.ALL.map { it.toString() }.toTypedArray()
+
+  override fun getRenderQueueDepth(): Int = MarkdownPreviewRenderScheduler.queueDepth
+
+  override fun getMaxRenderQueueDepth(): Int = MarkdownPreviewRenderScheduler.maxQueueDepth
+
+  override fun getPercentileMillis(stage: String, percentile: Double): Double {
+    return getPercentileMillis(Stage.valueOf(stage.toUpperCase(Locale.US)), percentile)
+  }
+
+  override fun reset() {
+    histograms.values.forEach(Histogram::clear)
+
+    synchronized(this) {
+      cancelledRenders = 0
+      wastedRenderNanos = 0
+    }
+  }
+
+  fun dump(): String = buildString {
+    getStageSummaries().forEach { appendln(it) }
+    appendln("cancelled renders: ${getCancelledRenderCount()}, wasted ${getWastedRenderMillis()} ms")
+    append("render queue depth: ${getRenderQueueDepth()}, max ${getMaxRenderQueueDepth()}, ")
+    appendln("deduplicated requests: ${MarkdownPreviewRenderScheduler.deduplicatedRequests}")
+    appendln(getParseCacheSummary())
+    append(getImageCacheSummaries().joinToString(separator = "\n"))
+  }
+
+  private fun summary(stage: Stage): String {
+    val histogram = histograms.getValue(stage)
+
+    return String.format(Locale.US, "%-16s count=%d p50=%.2fms p95=%.2fms p99=%.2fms", stage.name.toLowerCase(Locale.US),
+                         histogram.count, histogram.percentile(50.0) / 1e6, histogram.percentile(95.0) / 1e6,
+                         histogram.percentile(99.0) / 1e6)
+  }
+
+  enum class Stage {
+    GET_TEXT,
+    PARSE,
+    HTML_GENERATION,
+    SANITIZATION,
+    IMAGE_INLINING,
+    CSS,
+    DISPATCH,
+    RENDER,
+    QUEUE_WAIT,
+  }
+
+  private class Histogram {
+
+    private val values = LongArray(HISTORY_SIZE)
+
+    var count = 0L
+      @Synchronized get
+      private set
+
+    @Synchronized
+    fun add(value: Long) {
+      values[(count % HISTORY_SIZE).toInt()] = value
+      count++
+    }
+
+    @Synchronized
+    fun clear() {
+      count = 0
+    }
+
+    @Synchronized
+    fun percentile(percentile: Double): Double {
+      val size = minOf(count, HISTORY_SIZE.toLong()).toInt()
+      if (size == 0) {
+        return 0.0
+      }
+
+      val sorted = values.copyOf(size).apply { sort() }
+      val index = Math.ceil(percentile / 100 * size).toInt() - 1
+
+      return sorted[index.coerceIn(0, size - 1)].toDouble()
+    }
+  }
+}
+
+interface MarkdownPreviewMetricsMBean {
+
+  fun getStageSummaries(): Array<String>
+
+  fun getCancelledRenderCount(): Long
+
+  fun getWastedRenderMillis(): Long
+
+  fun getParseCacheSummary(): String
+
+  fun getImageCacheSummaries(): Array<String>
+
+  fun getRenderQueueDepth(): Int
+
+  fun getMaxRenderQueueDepth(): Int
+
+  fun getPercentileMillis(stage: String, percentile: Double): Double
+
+  fun reset()
+}
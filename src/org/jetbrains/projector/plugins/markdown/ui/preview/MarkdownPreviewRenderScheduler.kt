@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+/**
+ * Runs the preview renders of all the editors on a fixed number of workers.
+ *
+ * The queued renders are taken by [Priority]: the render of the focused editor goes first, then the visible previews,
+ * then the hidden ones. The priority is read once per request when a worker becomes free, so it reflects the current focus;
+ * it's read under the scheduler lock and must not touch Swing, the editors keep it up to date on EDT.
+ * Every document has at most one queued render for all its previews: a new request replaces the queued or delayed one,
+ * and a render of a document doesn't start while its previous render is still running.
+ */
+object MarkdownPreviewRenderScheduler {
+
+  private val WORKERS = Integer.getInteger("markdown.preview.render.threads",
+                                           (Runtime.getRuntime().availableProcessors() / 2).coerceIn(1, 4))
+
+  private val EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor("Markdown Preview Renderer", WORKERS)
+
+  private val LOG = Logger.getInstance(MarkdownPreviewRenderScheduler::class.java)
+
+  private val delayed = mutableMapOf<Any, DelayedRequest>()
+
+  private val queued = LinkedHashMap<Any, Request>()
+
+  private val running = mutableSetOf<Any>()
+
+  val queueDepth: Int
+    @Synchronized get() = queued.size
+
+  var maxQueueDepth = 0
+    @Synchronized get
+    private set
+
+  /**
+   * The number of requests replaced by newer requests of the same document.
+   */
+  var deduplicatedRequests = 0L
+    @Synchronized get
+    private set
+
+  /**
+   * Queues [task] after [delayMs], replacing the request of [key] made before.
+   */
+  @JvmStatic
+  fun schedule(key: Any, delayMs: Long, priority: Supplier<Priority>, task: Runnable) {
+    val request = Request(key, priority, task)
+
+    synchronized(this) {
+      delayed.remove(key)?.let {
+        it.future.cancel(false)
+        deduplicatedRequests++
+      }
+
+      if (delayMs <= 0) {
+        enqueue(request)
+        return
+      }
+
+      val future = AppExecutorUtil.getAppScheduledExecutorService().schedule({ enqueueDelayed(request) }, delayMs, TimeUnit.MILLISECONDS)
+      delayed[key] = DelayedRequest(request, future)
+    }
+  }
+
+  /**
+   * Drops the delayed and the queued requests of [key], a running render isn't affected.
+   */
+  @JvmStatic
+  @Synchronized
+  fun cancel(key: Any) {
+    delayed.remove(key)?.future?.cancel(false)
+    queued.remove(key)
+  }
+
+  @JvmStatic
+  @Synchronized
+  fun isPending(key: Any): Boolean = key in delayed || key in queued
+
+  @Synchronized
+  private fun enqueueDelayed(request: Request) {
+    if (delayed[request.key]?.request === request) {
+      delayed.remove(request.key)
+      enqueue(request)
+    }
+  }
+
+  private fun enqueue(request: Request) {
+    val previous = queued.put(request.key, request)
+
+    if (previous != null) {
+      deduplicatedRequests++
+      request.enqueueTime = previous.enqueueTime
+      return
+    }
+
+    request.enqueueTime = System.nanoTime()
+
+    maxQueueDepth = maxOf(maxQueueDepth, queued.size)
+    EXECUTOR.execute(::runNext)
+  }
+
+  private fun runNext() {
+    val request = synchronized(this) {
+      val next = queued.values
+                   .filter { it.key !in running }
+                   .map { it to it.priority() }
+                   .minWith(compareBy({ it.second }, { it.first.enqueueTime }))
+                   ?.first ?: return
+
+      queued.remove(next.key)
+      running.add(next.key)
+      next
+    }
+
+    MarkdownPreviewMetrics.record(MarkdownPreviewMetrics.Stage.QUEUE_WAIT, System.nanoTime() - request.enqueueTime)
+
+    try {
+      request.task.run()
+    }
+    catch (t: Throwable) {
+      LOG.error("Preview render failed", t)
+    }
+    finally {
+      synchronized(this) {
+        running.remove(request.key)
+
+        // the request has been skipped by a worker while this render was running
+        if (request.key in queued) {
+          EXECUTOR.execute(::runNext)
+        }
+      }
+    }
+  }
+
+  private fun Request.priority(): Priority = try {
+    priority.get()
+  }
+  catch (t: Throwable) {
+    LOG.debug("Can't get render priority", t)
+    Priority.HIDDEN
+  }
+
+  enum class Priority {
+    FOCUSED,
+    VISIBLE,
+    HIDDEN,
+  }
+
+  private class Request(val key: Any, val priority: Supplier<Priority>, val task: Runnable) {
+
+    var enqueueTime = 0L
+  }
+
+  private class DelayedRequest(val request: Request, val future: Future<*>)
+}
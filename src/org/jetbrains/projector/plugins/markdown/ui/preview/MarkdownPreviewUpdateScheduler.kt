@@ -0,0 +1,81 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+/**
+ * Chooses when to render the preview of a file after a change, based on the moving average of the render duration.
+ *
+ * A render starts when typing pauses for about as long as a render takes, so small files are rendered right away
+ * and large files aren't rendered after every keystroke. While typing continues, the preview is still rendered
+ * every [MAX_WAIT_MS]. Renders never start more often than allowed by [CPU_BUDGET], the share of time spent rendering.
+ */
+class MarkdownPreviewUpdateScheduler {
+
+  private var averageRenderMs = 0.0
+  private var lastRenderStart = 0L
+  private var firstPendingChange = 0L
+
+  /**
+   * Returns the delay of the render for a change made now.
+   */
+  @Synchronized
+  fun nextDelayMs(): Long {
+    val now = System.currentTimeMillis()
+    if (firstPendingChange == 0L) {
+      firstPendingChange = now
+    }
+
+    val debounce = averageRenderMs.toLong().coerceIn(MIN_DEBOUNCE_MS, MAX_DEBOUNCE_MS)
+    val minInterval = (averageRenderMs / CPU_BUDGET).toLong()
+    val deadline = firstPendingChange + maxOf(MAX_WAIT_MS, minInterval)
+
+    val start = minOf(now + debounce, deadline).coerceAtLeast(lastRenderStart + minInterval)
+
+    return (start - now).coerceAtLeast(0)
+  }
+
+  @Synchronized
+  fun renderStarted() {
+    lastRenderStart = System.currentTimeMillis()
+    firstPendingChange = 0L
+  }
+
+  @Synchronized
+  fun renderFinished(nanos: Long) {
+    val millis = nanos / 1e6
+
+    averageRenderMs = if (averageRenderMs == 0.0) millis else averageRenderMs + SMOOTHING * (millis - averageRenderMs)
+  }
+
+  companion object {
+
+    private const val SMOOTHING = 0.3
+
+    private const val MIN_DEBOUNCE_MS = 10L
+    private const val MAX_DEBOUNCE_MS = 500L
+    private const val MAX_WAIT_MS = 1000L
+
+    private val CPU_BUDGET = System.getProperty("markdown.preview.cpu.budget", "0.3").toDouble().coerceIn(0.01, 1.0)
+  }
+}
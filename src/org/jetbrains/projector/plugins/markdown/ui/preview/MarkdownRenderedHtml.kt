@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview
+
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.util.io.DigestUtil
+import org.intellij.markdown.html.HtmlGenerator
+
+/**
+ * Sanitized HTML of a Markdown document split by its top-level blocks.
+ *
+ * Every block keeps its `md-src-pos` attributes relative to its [MarkdownHtmlBlock.srcOffset],
+ * so blocks which are only moved by an edit stay equal.
+ */
+class MarkdownRenderedHtml(val blocks: List<MarkdownHtmlBlock>, val srcLength: Int) {
+
+  /**
+   * The whole page with absolute source positions.
+   */
+  val html: String by lazy {
+    buildString(blocks.sumBy { it.html.length } + PAGE_PREFIX.length + PAGE_SUFFIX.length + 32) {
+      append(PAGE_PREFIX)
+      append("<body ").append(SRC_ATTRIBUTE_PREFIX).append("0..").append(srcLength).append("\">")
+      blocks.forEach { appendShiftedSrcPositions(it.html, it.srcOffset) }
+      append(PAGE_SUFFIX)
+    }
+  }
+
+  /**
+   * The hash of the page content, only the hashes of the blocks are combined, so the unchanged blocks aren't hashed again.
+   */
+  val contentHash: String by lazy {
+    val digest = DigestUtil.sha256()
+    digest.update(srcLength.toString().toByteArray())
+    blocks.forEach {
+      digest.update(it.srcOffset.toString().toByteArray())
+      digest.update(it.hash)
+    }
+    StringUtil.toHexString(digest.digest())
+  }
+
+  /**
+   * Keeps the blocks [transform] doesn't change, so their [MarkdownHtmlBlock.hash] isn't computed again.
+   */
+  fun mapBlocks(transform: (String) -> String): MarkdownRenderedHtml {
+    val transformedBlocks = blocks.map { block ->
+      val html = transform(block.html)
+      if (html === block.html) block else MarkdownHtmlBlock(block.srcOffset, html)
+    }
+
+    return MarkdownRenderedHtml(transformedBlocks, srcLength)
+  }
+
+  companion object {
+
+    private const val PAGE_PREFIX = "<html><head></head>"
+    private const val PAGE_SUFFIX = "</body></html>"
+
+    private val SRC_ATTRIBUTE_PREFIX = "${HtmlGenerator.SRC_ATTRIBUTE_NAME}=\""
+
+    fun shiftSrcPositions(html: String, shift: Int): String {
+      if (shift == 0) {
+        return html
+      }
+
+      return buildString(html.length) { appendShiftedSrcPositions(html, shift) }
+    }
+
+    /**
+     * Appends [html] changing every `md-src-pos="start..end"` attribute by [shift].
+     */
+    private fun StringBuilder.appendShiftedSrcPositions(html: String, shift: Int) {
+      var copiedUntil = 0
+
+      while (true) {
+        val attributeStart = html.indexOf(SRC_ATTRIBUTE_PREFIX, copiedUntil)
+        if (attributeStart == -1) {
+          break
+        }
+
+        val valueStart = attributeStart + SRC_ATTRIBUTE_PREFIX.length
+        val valueEnd = html.indexOf('"', valueStart)
+        val separator = html.indexOf("..", valueStart)
+        if (valueEnd == -1 || separator == -1 || separator > valueEnd) {
+          break
+        }
+
+        val start = html.substring(valueStart, separator).toIntOrNull()
+        val end = html.substring(separator + 2, valueEnd).toIntOrNull()
+
+        append(html, copiedUntil, valueStart)
+        if (start != null && end != null) {
+          append(start + shift).append("..").append(end + shift)
+        }
+        else {
+          append(html, valueStart, valueEnd)
+        }
+        copiedUntil = valueEnd
+      }
+
+      append(html, copiedUntil, html.length)
+    }
+  }
+}
+
+class MarkdownHtmlBlock private constructor(val srcOffset: Int, val html: String, private val lazyHash: Lazy<ByteArray>) {
+
+  constructor(srcOffset: Int, html: String) : this(srcOffset, html, lazy { DigestUtil.sha256().digest(html.toByteArray()) })
+
+  val hash: ByteArray
+    get() = lazyHash.value
+
+  /**
+   * The same block moved by an edit, it shares the [hash] with this one.
+   */
+  fun withSrcOffset(srcOffset: Int): MarkdownHtmlBlock {
+    return if (srcOffset == this.srcOffset) this else MarkdownHtmlBlock(srcOffset, html, lazyHash)
+  }
+}
@@ -26,8 +26,14 @@ package org.jetbrains.projector.plugins.markdown.ui.preview
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.util.io.DigestUtil
+import org.intellij.markdown.IElementType
 import org.intellij.markdown.MarkdownElementTypes
-import org.intellij.markdown.html.HtmlGenerator
+import org.intellij.markdown.MarkdownTokenTypes
+import org.intellij.markdown.ast.ASTNode
+import org.intellij.markdown.ast.LeafASTNode
+import org.intellij.markdown.flavours.gfm.GFMTokenTypes
+import org.intellij.markdown.html.GeneratingProvider
+import org.intellij.markdown.parser.ASTNodeBuilder
 import org.intellij.markdown.parser.LinkMap
 import org.intellij.markdown.parser.MarkdownParser
 import org.jetbrains.annotations.NonNls
@@ -45,24 +51,46 @@ object MarkdownUtil {
     return bi.abs().toString(16)
   }
 
-  fun generateMarkdownHtml(file: VirtualFile, text: String, project: Project?): String {
+  /**
+   * Builds the full tree from the block-level tree shared with the lexer and the PSI parser
+   * by parsing inline elements of every paragraph, header and table cell.
+   * The shared tree isn't modified.
+   */
+  fun expandInlines(text: CharSequence, blockTree: ASTNode): ASTNode {
+    val parser = MarkdownParser(MarkdownParserManager.FLAVOUR)
+    val nodeBuilder = ASTNodeBuilder(text)
+
+    fun expand(node: ASTNode): ASTNode = when {
+      node.type in INLINE_CONTAINER_TYPES -> parser.parseInline(node.type, text, node.startOffset, node.endOffset)
+
+      node.children.isEmpty() -> LeafASTNode(node.type, node.startOffset, node.endOffset)
+
+      else -> nodeBuilder.createCompositeNode(node.type, node.children.map(::expand))
+    }
+
+    return expand(blockTree)
+  }
+
+  fun createHtmlGeneratingProviders(file: VirtualFile,
+                                    linkMap: LinkMap,
+                                    project: Project?,
+                                    cacheCollector: MarkdownCodeFencePluginCacheCollector): Map<IElementType, GeneratingProvider> {
     val parent = file.parent
     val baseUri = if (parent != null) File(parent.path).toURI() else null
 
-    val parsedTree = MarkdownParser(MarkdownParserManager.FLAVOUR).buildMarkdownTreeFromString(text)
-    val cacheCollector = MarkdownCodeFencePluginCacheCollector(file)
-
-    val linkMap = LinkMap.buildLinkMap(parsedTree, text)
     val map = MarkdownParserManager.FLAVOUR.createHtmlGeneratingProviders(linkMap, baseUri).toMutableMap()
     map.putAll(MarkdownParserManager.CODE_FENCE_PLUGIN_FLAVOUR.createHtmlGeneratingProviders(cacheCollector))
     if (project != null) {
       map[MarkdownElementTypes.IMAGE] = IntelliJImageGeneratingProvider(linkMap, baseUri)
     }
 
-    val html = HtmlGenerator(text, parsedTree, map, true).generateHtml()
-
-    MarkdownCodeFencePluginCache.getInstance().registerCacheProvider(cacheCollector)
-
-    return html
+    return map
   }
+
+  private val INLINE_CONTAINER_TYPES = setOf(
+    MarkdownElementTypes.PARAGRAPH,
+    MarkdownTokenTypes.ATX_CONTENT,
+    MarkdownTokenTypes.SETEXT_CONTENT,
+    GFMTokenTypes.CELL
+  )
 }
@@ -24,6 +24,8 @@
 package org.jetbrains.projector.plugins.markdown.ui.preview.projector
 
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.util.io.DigestUtil
 import java.io.BufferedReader
 import java.io.InputStreamReader
 import java.net.JarURLConnection
@@ -33,6 +35,34 @@ object CssProcessor {
 
   private val LOG = Logger.getInstance(CssProcessor::class.java)
 
+  private const val MAX_CACHED_BUNDLES = 16
+
+  private val bundles = object : LinkedHashMap<BundleKey, ProjectorMarkdownCssBundle>(16, 0.75f, true) {
+
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<BundleKey, ProjectorMarkdownCssBundle>): Boolean {
+      return size > MAX_CACHED_BUNDLES
+    }
+  }
+
+  /**
+   * Returns the CSS of [inlineCss] and [cssFileUrls] joined together. The stylesheets are read from the plugin jars,
+   * so they are read once and the bundle is reused by every panel that sets the same CSS.
+   */
+  fun getBundle(inlineCss: String?, cssFileUrls: List<String?>): ProjectorMarkdownCssBundle {
+    val key = BundleKey(cssFileUrls, inlineCss.orEmpty())
+
+    synchronized(bundles) {
+      bundles[key]?.let { return it }
+    }
+
+    val css = makeCss(inlineCss, cssFileUrls)
+    val bundle = ProjectorMarkdownCssBundle(StringUtil.toHexString(DigestUtil.sha256().digest(css.toByteArray())), css)
+
+    synchronized(bundles) {
+      return bundles.getOrPut(key) { bundle }
+    }
+  }
+
   fun makeCss(inlineCss: String?, cssFileUrls: List<String?>): String = buildString {
     appendln(inlineCss.orEmpty())
 
@@ -42,12 +72,12 @@ object CssProcessor {
       try {
         val connection = URL(it).openConnection() as JarURLConnection
 
-        val reader = BufferedReader(InputStreamReader(connection.inputStream))
+        BufferedReader(InputStreamReader(connection.inputStream)).use { reader ->
+          while (true) {
+            val line = reader.readLine() ?: break
 
-        while (true) {
-          val line = reader.readLine() ?: break
-
-          appendln(line)
+            appendln(line)
+          }
         }
       }
       catch (t: Throwable) {
@@ -55,4 +85,11 @@ object CssProcessor {
       }
     }
   }
+
+  private data class BundleKey(val cssFileUrls: List<String?>, val inlineCss: String)
 }
+
+/**
+ * The CSS of a panel, [id] is the hash of [css].
+ */
+class ProjectorMarkdownCssBundle(val id: String, val css: String)
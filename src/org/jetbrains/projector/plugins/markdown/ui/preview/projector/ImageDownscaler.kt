@@ -0,0 +1,119 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import java.awt.RenderingHints
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import javax.imageio.ImageIO
+
+/**
+ * Scales raster images down to the width they are shown at, so the preview doesn't send and decode full-size images.
+ *
+ * Widths are rounded up to buckets, so resizing the panel doesn't rescale the images on every pixel.
+ */
+object ImageDownscaler {
+
+  private val ENABLED = System.getProperty("markdown.projector.image.downscaling", "true").toBoolean()
+
+  private const val WIDTH_BUCKET = 256
+
+  /**
+   * Image formats written by ImageIO for the supported MIME types. GIFs aren't scaled because they can be animated.
+   */
+  private val OUTPUT_FORMATS = mapOf(
+    "image/png" to "png",
+    "image/bmp" to "png",
+    "image/jpg" to "jpg",
+    "image/jpeg" to "jpg"
+  )
+
+  class ScaledImage(val mimeType: String, val content: ByteArray)
+
+  /**
+   * @return the width to scale images to or 0 if they shouldn't be scaled
+   */
+  fun widthBucket(width: Int): Int {
+    if (!ENABLED || width <= 0) {
+      return 0
+    }
+
+    return (width + WIDTH_BUCKET - 1) / WIDTH_BUCKET * WIDTH_BUCKET
+  }
+
+  /**
+   * @param maxWidth a [widthBucket]
+   */
+  fun downscale(content: ByteArray, mimeType: String, maxWidth: Int): ScaledImage {
+    val original = ScaledImage(mimeType, content)
+    val format = OUTPUT_FORMATS[mimeType]
+    if (maxWidth <= 0 || format == null) {
+      return original
+    }
+
+    val image = ImageIO.read(ByteArrayInputStream(content)) ?: return original
+    if (image.width <= maxWidth) {
+      return original
+    }
+
+    val hasAlpha = format == "png" && image.colorModel.hasAlpha()
+    val height = maxOf(1, (image.height.toLong() * maxWidth / image.width).toInt())
+    val scaled = scale(image, maxWidth, height, if (hasAlpha) BufferedImage.TYPE_INT_ARGB else BufferedImage.TYPE_INT_RGB)
+
+    val output = ByteArrayOutputStream()
+    if (!ImageIO.write(scaled, format, output) || output.size() >= content.size) {
+      return original
+    }
+
+    return ScaledImage(if (format == "png") "image/png" else "image/jpeg", output.toByteArray())
+  }
+
+  /**
+   * Halves the image while it's more than twice as large as needed, so bilinear interpolation doesn't skip pixels.
+   */
+  private fun scale(image: BufferedImage, width: Int, height: Int, type: Int): BufferedImage {
+    var current = image
+
+    do {
+      val nextWidth = maxOf(width, current.width / 2)
+      val nextHeight = maxOf(height, current.height / 2)
+
+      val next = BufferedImage(nextWidth, nextHeight, type)
+      val graphics = next.createGraphics()
+      try {
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY)
+        graphics.drawImage(current, 0, 0, nextWidth, nextHeight, null)
+      }
+      finally {
+        graphics.dispose()
+      }
+      current = next
+    }
+    while (current.width > width)
+
+    return current
+  }
+}
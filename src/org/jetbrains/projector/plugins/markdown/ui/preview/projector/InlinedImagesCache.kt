@@ -0,0 +1,174 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.openapi.vfs.VirtualFileManager
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+
+/**
+ * Values computed from the content of local images, e.g. data URLs, so an image is read again only when its file changes.
+ * Every image can have several values, one per variant such as the width it's scaled to.
+ *
+ * The values of an image are valid while the modification time and the size of the file stay the same,
+ * values of files changed via VFS are dropped right away. The least recently used entries are evicted
+ * when the memory taken by the cached values, two bytes per char, exceeds [maxTotalBytes].
+ */
+class InlinedImagesCache private constructor(private val name: String, private val maxTotalBytes: Long) {
+
+  private val entries = LinkedHashMap<String, FileEntry>(16, 0.75f, true)
+  private var totalBytes = 0L
+
+  var hits = 0L
+    @Synchronized get
+    private set
+
+  var misses = 0L
+    @Synchronized get
+    private set
+
+  var evictions = 0L
+    @Synchronized get
+    private set
+
+  var invalidations = 0L
+    @Synchronized get
+    private set
+
+  /**
+   * @param encode makes the value of the [variant] from the file content
+   */
+  fun get(path: Path, variant: Int, encode: (ByteArray) -> String): String {
+    val key = FileUtil.toSystemIndependentName(path.toAbsolutePath().normalize().toString())
+    val attributes = Files.readAttributes(path, BasicFileAttributes::class.java)
+    val modificationTime = attributes.lastModifiedTime().toMillis()
+    val size = attributes.size()
+
+    synchronized(this) {
+      val value = entries[key]?.takeIf { it.modificationTime == modificationTime && it.size == size }?.values?.get(variant)
+      if (value != null) {
+        ++hits
+        return value
+      }
+      ++misses
+    }
+
+    val value = encode(Files.readAllBytes(path))
+    put(key, modificationTime, size, variant, value)
+    return value
+  }
+
+  @Synchronized
+  fun invalidate(path: String) {
+    val entry = entries.remove(FileUtil.toSystemIndependentName(path)) ?: return
+    totalBytes -= entry.bytes
+    ++invalidations
+  }
+
+  @Synchronized
+  fun clear() {
+    entries.clear()
+    totalBytes = 0
+  }
+
+  val size: Int
+    @Synchronized get() = entries.size
+
+  val cachedBytes: Long
+    @Synchronized get() = totalBytes
+
+  @Synchronized
+  override fun toString(): String {
+    return "$name: size=${entries.size}, bytes=$totalBytes, hits=$hits, misses=$misses, evictions=$evictions, " +
+           "invalidations=$invalidations"
+  }
+
+  @Synchronized
+  private fun put(key: String, modificationTime: Long, size: Long, variant: Int, value: String) {
+    val valueBytes = bytesOf(value)
+    if (valueBytes > maxTotalBytes) {
+      return
+    }
+
+    var entry = entries[key]
+    if (entry == null || entry.modificationTime != modificationTime || entry.size != size) {
+      entry?.let { totalBytes -= it.bytes }
+      entry = FileEntry(modificationTime, size)
+      entries[key] = entry
+    }
+
+    entry.values.put(variant, value)?.let {
+      entry.bytes -= bytesOf(it)
+      totalBytes -= bytesOf(it)
+    }
+    entry.bytes += valueBytes
+    totalBytes += valueBytes
+
+    val iterator = entries.values.iterator()
+    while (totalBytes > maxTotalBytes) {
+      totalBytes -= iterator.next().bytes
+      iterator.remove()
+      ++evictions
+    }
+  }
+
+  private class FileEntry(val modificationTime: Long, val size: Long) {
+
+    val values = mutableMapOf<Int, String>()
+
+    var bytes = 0L
+  }
+
+  private fun bytesOf(value: String): Long = 2L * value.length
+
+  companion object {
+
+    val DATA_URLS = InlinedImagesCache("image data URLs",
+                                       java.lang.Long.getLong("markdown.projector.image.cache.bytes", 64L * 1024 * 1024))
+
+    val CONTENT_HASHES = InlinedImagesCache("image hashes", 1024L * 1024)
+
+    val ALL = listOf(DATA_URLS, CONTENT_HASHES)
+
+    init {
+      val application = ApplicationManager.getApplication()
+
+      // a single listener for all the caches, it's removed when the plugin is unloaded
+      application?.messageBus?.connect(ProjectorMarkdownPluginDisposable.getInstance())?.subscribe(
+        VirtualFileManager.VFS_CHANGES,
+        object : BulkFileListener {
+
+          override fun after(events: List<VFileEvent>) {
+            events.forEach { event -> ALL.forEach { it.invalidate(event.path) } }
+          }
+        }
+      )
+    }
+  }
+}
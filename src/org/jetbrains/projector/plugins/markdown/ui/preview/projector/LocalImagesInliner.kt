@@ -23,71 +23,175 @@
  */
 package org.jetbrains.projector.plugins.markdown.ui.preview.projector
 
-import java.io.ByteArrayInputStream
-import java.io.StringWriter
+import com.intellij.openapi.util.text.StringUtil
 import java.net.URI
-import java.nio.file.Files
 import java.nio.file.Path
 import java.util.*
-import javax.xml.parsers.DocumentBuilderFactory
-import javax.xml.transform.OutputKeys
-import javax.xml.transform.TransformerFactory
-import javax.xml.transform.dom.DOMSource
-import javax.xml.transform.stream.StreamResult
 
+/**
+ * Replaces `file:` URLs in `src` attributes of `img` tags with data URLs
+ * or with URLs of images published via [ProjectorImagePublisher] if the client supports it.
+ *
+ * The HTML is scanned in one pass and everything except the replaced attribute values is copied as is,
+ * so it works both for whole pages and for separate blocks.
+ */
 object LocalImagesInliner {
 
-  private val docFactory = DocumentBuilderFactory.newInstance()
-  private val docBuilder = docFactory.newDocumentBuilder()
+  private const val LOCAL_URL_PREFIX = "file:"
+
+  fun hasLocalImages(html: String): Boolean = LOCAL_URL_PREFIX in html
+
+  /**
+   * @param maxImageWidth the width in pixels raster images are scaled down to, 0 to keep the original size
+   */
+  fun String.inlineLocalImages(maxImageWidth: Int = 0): String {
+    if (!hasLocalImages(this)) {
+      return this
+    }
+
+    val widthBucket = ImageDownscaler.widthBucket(maxImageWidth)
+    var result: StringBuilder? = null
+    var copiedUntil = 0
+
+    var tagStart = indexOf("<img", ignoreCase = true)
+    while (tagStart != -1) {
+      val attributesStart = tagStart + "<img".length
+      if (attributesStart < length && (this[attributesStart].isWhitespace() || this[attributesStart] == '/')) {
+        val src = findSrcAttributeValue(attributesStart)
+        if (src != null) {
+          val url = decodeEntities(substring(src.first, src.last + 1))
+
+          if (url.startsWith(LOCAL_URL_PREFIX)) {
+            result = (result ?: StringBuilder(length)).append(this, copiedUntil, src.first).append(StringUtil.escapeXmlEntities(inlineImage(url, widthBucket)))
+            copiedUntil = src.last + 1
+          }
+        }
+      }
+
+      tagStart = indexOf("<img", attributesStart, ignoreCase = true)
+    }
 
-  private val transformerFactory = TransformerFactory.newInstance()
-  private val transformer = transformerFactory.newTransformer().apply {
-    setOutputProperty(OutputKeys.INDENT, "no")  // this is mandatory because extra indents spoil blocks of code
-    setOutputProperty(OutputKeys.METHOD, "xml")  // previous line won't work without this one
-    setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes")  // previous line will add header so we have o disable it explicitly
+    return result?.append(this, copiedUntil, length)?.toString() ?: this
   }
 
-  fun String.inlineLocalImages(): String {
-    val input = ByteArrayInputStream(this.toByteArray())
+  /**
+   * @return the range of the `src` value inside the tag starting at [from] without quotes
+   */
+  private fun String.findSrcAttributeValue(from: Int): IntRange? {
+    var i = from
 
-    val doc = docBuilder.parse(input)
-    val images = doc.getElementsByTagName("img")
+    while (i < length) {
+      while (i < length && (this[i].isWhitespace() || this[i] == '/')) {
+        ++i
+      }
+      if (i >= length || this[i] == '>') {
+        return null
+      }
 
-    for (imageId in 0 until images.length) {
-      val image = images.item(imageId)
+      val nameStart = i
+      while (i < length && !this[i].isWhitespace() && this[i] != '=' && this[i] != '>' && this[i] != '/') {
+        ++i
+      }
+      val name = substring(nameStart, i)
 
-      val srcAttribute = image.attributes.getNamedItem("src") ?: continue
+      while (i < length && this[i].isWhitespace()) {
+        ++i
+      }
+      if (i >= length || this[i] != '=') {
+        continue  // an attribute without a value
+      }
+      ++i
+      while (i < length && this[i].isWhitespace()) {
+        ++i
+      }
+      if (i >= length) {
+        return null
+      }
 
-      val src = srcAttribute.textContent
+      val valueStart: Int
+      val valueEnd: Int
+      when (val quote = this[i]) {
+        '"', '\'' -> {
+          valueStart = i + 1
+          valueEnd = indexOf(quote, valueStart)
+          if (valueEnd == -1) {
+            return null
+          }
+          i = valueEnd + 1
+        }
+
+        else -> {
+          valueStart = i
+          while (i < length && !this[i].isWhitespace() && this[i] != '>') {
+            ++i
+          }
+          valueEnd = i
+        }
+      }
 
-      if (!src.startsWith("file:")) {
-        continue
+      if (name.equals("src", ignoreCase = true)) {
+        return valueStart until valueEnd
       }
+    }
 
-      val extension = src.substringAfterLast('.', missingDelimiterValue = "")
-      val path = Path.of(URI(src))
+    return null
+  }
 
-      val inlinedImage = inlineImage(path, extension)
+  private fun decodeEntities(value: String): String {
+    if ('&' !in value) {
+      return value
+    }
 
-      srcAttribute.textContent = inlinedImage
+    return buildString(value.length) {
+      var i = 0
+      while (i < value.length) {
+        val entityEnd = if (value[i] == '&') value.indexOf(';', i) else -1
+        val decoded = if (entityEnd != -1) decodeEntity(value.substring(i + 1, entityEnd)) else null
+
+        if (decoded != null) {
+          append(decoded)
+          i = entityEnd + 1
+        }
+        else {
+          append(value[i])
+          ++i
+        }
+      }
     }
+  }
 
-    val source = DOMSource(doc)
-    val stringWriter = StringWriter(this.length)
-    transformer.transform(source, StreamResult(stringWriter))
+  private fun decodeEntity(entity: String): String? = when {
+    entity.startsWith("#x") || entity.startsWith("#X") -> entity.substring(2).toIntOrNull(16)?.let { String(Character.toChars(it)) }
 
-    return stringWriter.toString()
+    entity.startsWith("#") -> entity.substring(1).toIntOrNull()?.let { String(Character.toChars(it)) }
+
+    else -> when (entity) {
+      "amp" -> "&"
+      "lt" -> "<"
+      "gt" -> ">"
+      "quot" -> "\""
+      "apos" -> "'"
+      else -> null
+    }
   }
 
-  private fun inlineImage(localPath: Path, extension: String): String {
+  private fun inlineImage(src: String, widthBucket: Int): String {
     return try {
-      val bytes = Files.readAllBytes(localPath)
-      val base64Content = Base64.getEncoder().encodeToString(bytes)
+      val extension = src.substringAfterLast('.', missingDelimiterValue = "")
+      val mimeType = when (extension.toLowerCase()) {
+        "svg" -> "image/svg+xml"
 
-      when (extension.toLowerCase()) {
-        "svg" -> "data:image/svg+xml;base64,$base64Content"
+        else -> "image/$extension"
+      }
+      val path = Path.of(URI(src))
+
+      if (ProjectorMarkdownHtmlPanelProvider.publishImageCallback != null) {
+        return ProjectorImagePublisher.getImageUrl(path, mimeType, widthBucket)
+      }
 
-        else -> "data:image/$extension;base64,$base64Content"
+      InlinedImagesCache.DATA_URLS.get(path, widthBucket) { bytes ->
+        val image = ImageDownscaler.downscale(bytes, mimeType, widthBucket)
+        "data:${image.mimeType};base64,${Base64.getEncoder().encodeToString(image.content)}"
       }
     }
     catch (t: Throwable) {
@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.util.containers.SLRUMap
+import com.intellij.util.io.DigestUtil
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * Sends local images to the clients separately from the HTML via [ProjectorMarkdownHtmlPanelProvider.publishImageCallback].
+ *
+ * An image is published once under the hash of its content and is referenced from the HTML by a [URL_PREFIX] URL,
+ * so unchanged images aren't sent again with every edit and an image shown in several panels is sent once.
+ * The clients keep the published images until [republish] is called.
+ */
+object ProjectorImagePublisher {
+
+  const val URL_PREFIX = "hash:"
+
+  private val MAX_IMAGES = Integer.getInteger("markdown.projector.image.published.max", 512)
+
+  /**
+   * The images seen recently by their hashes, the least recently used ones are forgotten and are published again if needed.
+   */
+  private val knownImages = SLRUMap<String, KnownImage>(MAX_IMAGES / 2, MAX_IMAGES / 2)
+
+  /**
+   * @param widthBucket the [ImageDownscaler.widthBucket] to scale the image to
+   */
+  fun getImageUrl(path: Path, mimeType: String, widthBucket: Int): String {
+    val hash = InlinedImagesCache.CONTENT_HASHES.get(path, widthBucket) { bytes ->
+      val image = ImageDownscaler.downscale(bytes, mimeType, widthBucket)
+      contentHash(image.content).also {
+        publish(ProjectorMarkdownImage(it, image.mimeType, image.content), KnownImage(path, mimeType, widthBucket))
+      }
+    }
+
+    val knownImage = synchronized(this) {
+      (knownImages.get(hash) ?: KnownImage(path, mimeType, widthBucket).also { knownImages.put(hash, it) })
+        .takeUnless { it.isPublished }
+    }
+    if (knownImage != null) {
+      publishFromDisk(hash, knownImage)
+    }
+
+    return URL_PREFIX + hash
+  }
+
+  /**
+   * Publishes the images with the [hashes] again, e.g. for a new client, called off EDT since the images are read from disk.
+   * The rest of the images is published when a page referencing them is rendered again.
+   */
+  fun republish(hashes: Set<String>) {
+    val images = synchronized(this) {
+      knownImages.entrySet().forEach { it.value.isPublished = false }
+      hashes.mapNotNull { hash -> knownImages.get(hash)?.let { hash to it } }
+    }
+
+    images.forEach { (hash, image) ->
+      if (!publishFromDisk(hash, image)) {
+        synchronized(this) { knownImages.remove(hash) }
+      }
+    }
+  }
+
+  /**
+   * Adds the hashes of the published images referenced from [html] to [hashes].
+   */
+  fun collectImageHashes(html: String, hashes: MutableSet<String>) {
+    var start = html.indexOf("\"$URL_PREFIX")
+    while (start != -1) {
+      val hashStart = start + 1 + URL_PREFIX.length
+      val hashEnd = html.indexOf('"', hashStart)
+      if (hashEnd == -1) {
+        return
+      }
+
+      hashes.add(html.substring(hashStart, hashEnd))
+      start = html.indexOf("\"$URL_PREFIX", hashEnd)
+    }
+  }
+
+  private fun publishFromDisk(hash: String, image: KnownImage): Boolean {
+    val scaledImage = try {
+      ImageDownscaler.downscale(Files.readAllBytes(image.path), image.mimeType, image.widthBucket)
+    }
+    catch (t: Throwable) {
+      LOG.debug("Can't read ${image.path}", t)
+      return false
+    }
+
+    // the file has changed, it will be published under the new hash when the page is rendered again
+    if (contentHash(scaledImage.content) != hash) {
+      return false
+    }
+
+    publish(ProjectorMarkdownImage(hash, scaledImage.mimeType, scaledImage.content), image)
+    return true
+  }
+
+  private fun publish(image: ProjectorMarkdownImage, source: KnownImage) {
+    val isNew = synchronized(this) {
+      val knownImage = knownImages.get(image.hash) ?: source.also { knownImages.put(image.hash, it) }
+      val wasPublished = knownImage.isPublished
+      knownImage.isPublished = true
+      !wasPublished
+    }
+
+    if (isNew) {
+      ProjectorMarkdownHtmlPanelProvider.publishImageCallback?.accept(image)
+    }
+  }
+
+  private fun contentHash(bytes: ByteArray): String = StringUtil.toHexString(DigestUtil.sha256().digest(bytes))
+
+  private class KnownImage(val path: Path, val mimeType: String, val widthBucket: Int) {
+
+    var isPublished = false
+  }
+
+  private val LOG = Logger.getInstance(ProjectorImagePublisher::class.java)
+}
+
+class ProjectorMarkdownImage(val hash: String, val mimeType: String, val content: ByteArray)
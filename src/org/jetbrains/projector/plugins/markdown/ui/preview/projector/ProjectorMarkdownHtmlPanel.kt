@@ -23,13 +23,20 @@
  */
 package org.jetbrains.projector.plugins.markdown.ui.preview.projector
 
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ModalityState
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
 import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownHtmlPanel
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownPreviewMetrics
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownPreviewMetrics.Stage
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownRenderedHtml
 import org.jetbrains.projector.plugins.markdown.ui.preview.projector.LocalImagesInliner.inlineLocalImages
 import java.awt.Component
 import java.util.concurrent.atomic.AtomicInteger
 import javax.swing.JComponent
 import javax.swing.SwingUtilities
+import kotlin.math.roundToInt
 
 class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
 
@@ -50,13 +57,28 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
   var y = 0
     private set
 
-  var lastChangedHtml = ""
+  /**
+   * The whole page with inlined images, it's built from [lastChangedRenderedHtml] only when asked,
+   * e.g. when the client doesn't support patches.
+   */
+  val lastChangedHtml: String
+    get() = lastChangedRenderedHtml?.html ?: lastChangedPlainHtml
+
+  /**
+   * The same page as [lastChangedHtml] split by blocks or null if the page has been set as a whole.
+   */
+  var lastChangedRenderedHtml: MarkdownRenderedHtml? = null
     private set
 
+  private var lastChangedPlainHtml = ""
+
   var rootComponent: Component? = null
     private set
 
-  var lastCssString = ""
+  val lastCssString: String
+    get() = lastCssBundle?.css.orEmpty()
+
+  var lastCssBundle: ProjectorMarkdownCssBundle? = null
     private set
 
   var lastScrollOffset = 0
@@ -67,34 +89,56 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
   private var lastInlineCss: String? = null
   private var lastCssFileUrls: List<String?> = emptyList()
   private var lastHtml: String = ""
+  private var lastRenderedHtml: MarkdownRenderedHtml? = null
+  private var lastImageWidthBucket = 0
+
+  /**
+   * Incremented on every page set, a page inlined on a pooled thread is applied only if it's still the latest one.
+   */
+  @Volatile
+  private var htmlVersion = 0
+
+  /**
+   * The latest page set, it may be still being inlined.
+   */
+  private var sourceHtml: String? = null
+  private var sourceRenderedHtml: MarkdownRenderedHtml? = null
+  private var sourceHasLocalImages = false
+
+  /**
+   * The panel width in device pixels.
+   */
+  private val maxImageWidth: Int
+    get() {
+      val scale = backingComponent.graphicsConfiguration?.defaultTransform?.scaleX ?: 1.0
+      return (backingComponent.width * scale).roundToInt()
+    }
 
   private var disposed = false
 
-  // todo: to determine where our component is located, a thread is used. it's better to rework the logic
-  private var helperThreadOnceLaunched = false
-  private val helperThreadRunnableGetter: Runnable get() = helperThreadRunnable
-  private val helperThreadRunnable = Runnable {
-    Thread.sleep(1000)
+  private var isDebugTextOutdated = false
 
-    if (disposed) {
-      return@Runnable
-    }
+  init {
+    ProjectorMarkdownHtmlPanelTracker.register(this)
+  }
 
-    SwingUtilities.invokeLater {
-      checkComponentMoved()
-      checkComponentResized()
-      checkComponentShown()
-      checkRootChanged()
+  override fun render() {
+    isDebugTextOutdated = true
 
-      Thread(helperThreadRunnableGetter).start()
-    }
+    updateDebugText()
   }
 
-  override fun render() {
-    if (!helperThreadOnceLaunched) {
-      Thread(helperThreadRunnable).start()
+  /**
+   * Builds the text of the fallback component only if it can be seen, i.e. the client doesn't render the preview itself,
+   * or if [DEBUG_TEXT] is set: the text contains the whole page and makes Swing lay out megabytes of text.
+   */
+  private fun updateDebugText() {
+    if (!isDebugTextOutdated || !(DEBUG_TEXT || backingComponent.isShowing && !isRenderedByClient())) {
+      return
     }
 
+    isDebugTextOutdated = false
+
     val componentText = buildString {
       if (disposed) {
         appendln("DISPOSED")
@@ -110,36 +154,113 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
       appendln()
 
       appendln("html:")
-      appendln(lastHtml.replace(">", ">\n"))
+      appendln((lastRenderedHtml?.html ?: lastHtml).replace(">", ">\n"))
     }
 
     backingComponent.setText(componentText)
   }
 
+  private fun isRenderedByClient(): Boolean = with(ProjectorMarkdownHtmlPanelProvider) {
+    batchUpdateCallback != null || setHtmlCallback != null || setHtmlPatchCallback != null
+  }
+
   override fun setCSS(inlineCss: String?, vararg fileUris: String?) {
     lastInlineCss = inlineCss
     lastCssFileUrls = fileUris.toList()
 
-    lastCssString = CssProcessor.makeCss(lastInlineCss, lastCssFileUrls)
+    lastCssBundle = MarkdownPreviewMetrics.measure(Stage.CSS) { CssProcessor.getBundle(lastInlineCss, lastCssFileUrls) }
 
     ProjectorMarkdownHtmlPanelUpdater.setCss(id)
   }
 
   override fun setHtml(html: String) {
-    try {
+    val maxImageWidth = maxImageWidth
+
+    sourceHtml = html
+    sourceRenderedHtml = null
+    sourceHasLocalImages = LocalImagesInliner.hasLocalImages(html)
+
+    inlineImages(maxImageWidth) {
       var changedHtml = html
 
       if (html.isNotEmpty()) {
-        changedHtml = changedHtml.inlineLocalImages()
+        changedHtml = MarkdownPreviewMetrics.measure(Stage.IMAGE_INLINING) { changedHtml.inlineLocalImages(maxImageWidth) }
+      }
+
+      Runnable {
+        lastChangedPlainHtml = changedHtml
+        lastChangedRenderedHtml = null
+        lastHtml = html
+        lastRenderedHtml = null
+      }
+    }
+  }
+
+  override fun setHtml(renderedHtml: MarkdownRenderedHtml) {
+    val maxImageWidth = maxImageWidth
+
+    sourceHtml = null
+    sourceRenderedHtml = renderedHtml
+    sourceHasLocalImages = renderedHtml.blocks.any { LocalImagesInliner.hasLocalImages(it.html) }
+
+    inlineImages(maxImageWidth) {
+      val changedRenderedHtml = MarkdownPreviewMetrics.measure(Stage.IMAGE_INLINING) {
+        renderedHtml.mapBlocks { it.inlineLocalImages(maxImageWidth) }
+      }
+
+      Runnable {
+        lastChangedPlainHtml = ""
+        lastChangedRenderedHtml = changedRenderedHtml
+        lastHtml = ""
+        lastRenderedHtml = renderedHtml
+      }
+    }
+  }
+
+  /**
+   * Runs [inline] and sends the page it produces, called on EDT.
+   *
+   * Reading, scaling and encoding the images takes long, so pages referencing local files are inlined on a pooled thread
+   * and the result is applied on EDT unless a newer page has been set meanwhile. The rest of the pages are applied right away.
+   *
+   * @param inline inlines the images and returns the update of the panel state
+   */
+  private fun inlineImages(maxImageWidth: Int, inline: () -> Runnable) {
+    val version = ++htmlVersion
+
+    fun apply(update: Runnable) {
+      if (version != htmlVersion || disposed) {
+        return
       }
 
-      lastChangedHtml = changedHtml
-      lastHtml = html
+      update.run()
+      lastImageWidthBucket = ImageDownscaler.widthBucket(maxImageWidth)
 
       ProjectorMarkdownHtmlPanelUpdater.setHtml(id)
+
+      isDebugTextOutdated = true
+      updateDebugText()
+    }
+
+    fun inlineSafely(): Runnable? = try {
+      inline()
     }
     catch (t: Throwable) {
       LOG.error("Can't set HTML in Panel #$id...", t)
+      null
+    }
+
+    if (!sourceHasLocalImages) {
+      inlineSafely()?.let(::apply)
+      return
+    }
+
+    INLINING_EXECUTOR.execute {
+      val update = if (version == htmlVersion) inlineSafely() else null
+
+      if (update != null) {
+        ApplicationManager.getApplication().invokeLater({ apply(update) }, ModalityState.any())
+      }
     }
   }
 
@@ -156,9 +277,24 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
   override fun dispose() {
     disposed = true
 
+    ProjectorMarkdownHtmlPanelTracker.unregister(this)
     ProjectorMarkdownHtmlPanelUpdater.dispose(id)
   }
 
+  /**
+   * Sends the changes of the component location, size, visibility and window, called on EDT.
+   */
+  fun checkComponent() {
+    if (disposed) {
+      return
+    }
+
+    checkComponentMoved()
+    checkComponentResized()
+    checkComponentShown()
+    checkRootChanged()
+  }
+
   private fun checkComponentMoved() {
     // todo: don't use location on screen but location in window and set location on client relative to window
 
@@ -183,16 +319,31 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
         height = it.height
 
         ProjectorMarkdownHtmlPanelUpdater.resize(id)
+
+        updateImagesWidth()
       }
     }
   }
 
+  /**
+   * Scales the images of the page again if they are too small or too large for the new width.
+   */
+  private fun updateImagesWidth() {
+    if (ImageDownscaler.widthBucket(maxImageWidth) == lastImageWidthBucket || !sourceHasLocalImages) {
+      return
+    }
+
+    sourceRenderedHtml?.let { setHtml(it) } ?: sourceHtml?.let { setHtml(it) }
+  }
+
   private fun checkComponentShown() {
     backingComponent.isShowing.let {
       if (it != shown) {
         shown = it
 
         ProjectorMarkdownHtmlPanelUpdater.show(id)
+
+        updateDebugText()
       }
     }
   }
@@ -215,6 +366,10 @@ class ProjectorMarkdownHtmlPanel : MarkdownHtmlPanel {
 
     private val NEXT_ID = AtomicInteger()
 
+    private val INLINING_EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor("Markdown Projector Image Inlining", 2)
+
+    private val DEBUG_TEXT = System.getProperty("markdown.projector.debug.text", "false").toBoolean()
+
     private val LOG = Logger.getInstance(ProjectorMarkdownHtmlPanel::class.java)
   }
 }
@@ -0,0 +1,188 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownPreviewMetrics
+import java.awt.Component
+import java.awt.Dimension
+import java.awt.Point
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Merges the events of the panels happening during a frame, e.g. while a window is dragged, and sends them once per frame.
+ *
+ * Only the kinds of the events are kept, the values are read from the panels when the frame ends,
+ * so every kind of event is sent at most once per frame with the latest value.
+ */
+object ProjectorMarkdownHtmlPanelDispatcher {
+
+  private val FRAME_MS = java.lang.Long.getLong("markdown.projector.frame.ms", 16L)
+
+  private val EXECUTOR = AppExecutorUtil.createBoundedScheduledExecutorService("Markdown Projector Panel Dispatcher", 1)
+
+  private val LOG = Logger.getInstance(ProjectorMarkdownHtmlPanelDispatcher::class.java)
+
+  private val pending = LinkedHashMap<Int, EnumSet<Event>>()
+
+  private var isFlushScheduled = false
+
+  /**
+   * The number of events sent after merging.
+   */
+  var emittedEvents = 0L
+    @Synchronized get
+    private set
+
+  /**
+   * The number of events dropped because an event of the same kind was already pending for the panel.
+   */
+  var mergedEvents = 0L
+    @Synchronized get
+    private set
+
+  var frames = 0L
+    @Synchronized get
+    private set
+
+  fun post(id: Int, vararg events: Event) {
+    synchronized(this) {
+      val panelEvents = pending.getOrPut(id) { EnumSet.noneOf(Event::class.java) }
+
+      events.forEach {
+        if (!panelEvents.add(it)) {
+          mergedEvents++
+        }
+      }
+
+      if (!isFlushScheduled) {
+        isFlushScheduled = true
+        EXECUTOR.schedule(::flush, FRAME_MS, TimeUnit.MILLISECONDS)
+      }
+    }
+  }
+
+  private fun flush() {
+    val events = synchronized(this) {
+      isFlushScheduled = false
+      frames++
+      emittedEvents += pending.values.sumBy { it.size }
+
+      LinkedHashMap(pending).also { pending.clear() }
+    }
+
+    try {
+      MarkdownPreviewMetrics.measure(MarkdownPreviewMetrics.Stage.DISPATCH) { ProjectorMarkdownHtmlPanelUpdater.send(events) }
+    }
+    catch (t: Throwable) {
+      LOG.error("Can't send panel updates", t)
+    }
+  }
+
+  enum class Event {
+    SHOW,
+    RESIZE,
+    MOVE,
+    PLACE_TO_WINDOW,
+    HTML,
+    CSS,
+    SCROLL,
+    DISPOSE,
+  }
+}
+
+/**
+ * The changes of a panel made during a frame, the fields of the unchanged values are null.
+ */
+class ProjectorMarkdownHtmlPanelUpdate(val id: Int) {
+
+  var shown: Boolean? = null
+    internal set
+
+  var size: Dimension? = null
+    internal set
+
+  var location: Point? = null
+    internal set
+
+  /**
+   * If true, the panel is placed to the window of [rootComponent].
+   */
+  var isPlacedToWindow = false
+    internal set
+
+  var rootComponent: Component? = null
+    internal set
+
+  var html: String? = null
+    internal set
+
+  /**
+   * Set instead of [html] if [ProjectorMarkdownHtmlPanelProvider.isPayloadCompressionSupported].
+   */
+  var htmlPayload: ProjectorMarkdownPayload? = null
+    internal set
+
+  var htmlPatch: ProjectorMarkdownHtmlPatch? = null
+    internal set
+
+  /**
+   * The version of [html] or [htmlPatch], zero if the HTML hasn't changed.
+   */
+  var htmlVersion = 0L
+    internal set
+
+  /**
+   * The content hash of the page of [htmlVersion], set if [ProjectorMarkdownHtmlPanelProvider.isHtmlAcknowledged].
+   */
+  var htmlHash: String? = null
+    internal set
+
+  /**
+   * If true, only [htmlHash] is sent. The client calls [ProjectorMarkdownHtmlPanelProvider.acknowledgeHtml] if it has the page
+   * with this hash and [ProjectorMarkdownHtmlPanelProvider.requestHtmlSnapshot] otherwise.
+   */
+  var isHtmlOffered = false
+    internal set
+
+  var css: String? = null
+    internal set
+
+  /**
+   * Set instead of [css] if [ProjectorMarkdownHtmlPanelProvider.isPayloadCompressionSupported].
+   */
+  var cssPayload: ProjectorMarkdownPayload? = null
+    internal set
+
+  var cssBundleId: String? = null
+    internal set
+
+  var scrollOffset: Int? = null
+    internal set
+
+  var isDisposed = false
+    internal set
+}
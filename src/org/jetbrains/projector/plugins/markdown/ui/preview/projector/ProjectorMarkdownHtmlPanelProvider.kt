@@ -31,6 +31,10 @@ import java.awt.Point
 import java.util.function.BiConsumer
 import java.util.function.Consumer
 
+/**
+ * Creates the panels shown by the Projector clients.
+ * The callbacks of the panels are invoked on EDT, [publishImageCallback] is invoked on pooled threads.
+ */
 class ProjectorMarkdownHtmlPanelProvider : MarkdownHtmlPanelProvider() {
 
   override fun isAvailable(): AvailabilityInfo = AvailabilityInfo.AVAILABLE
@@ -43,6 +47,23 @@ class ProjectorMarkdownHtmlPanelProvider : MarkdownHtmlPanelProvider() {
 
   companion object {
 
+    /**
+     * If set, the changes of the panels made during a frame are sent by a single call instead of the other callbacks.
+     * The HTML is sent as patches then.
+     */
+    var batchUpdateCallback: Consumer<List<ProjectorMarkdownHtmlPanelUpdate>>? = null
+      @JvmStatic
+      set
+
+    /**
+     * If true, the client calls [acknowledgeHtml] for every HTML version of [batchUpdateCallback].
+     * A new version of a panel is sent after the previous one is acknowledged, intermediate versions are dropped.
+     * After [updateAll], the hash of the page is sent first.
+     */
+    var isHtmlAcknowledged = false
+      @JvmStatic
+      set
+
     var showCallback: BiConsumer<Int, Boolean>? = null
       @JvmStatic
       set
@@ -67,10 +88,61 @@ class ProjectorMarkdownHtmlPanelProvider : MarkdownHtmlPanelProvider() {
       @JvmStatic
       set
 
+    /**
+     * Used instead of [setHtmlCallback] if set.
+     */
+    var setHtmlPatchCallback: BiConsumer<Int, ProjectorMarkdownHtmlPatch>? = null
+      @JvmStatic
+      set
+
+    /**
+     * If set, local images are published via this callback and are referenced from the HTML by their hash.
+     */
+    var publishImageCallback: Consumer<ProjectorMarkdownImage>? = null
+      @JvmStatic
+      set
+
     var setCssCallback: BiConsumer<Int, String>? = null
       @JvmStatic
       set
 
+    /**
+     * Used instead of [setHtmlCallback] if set, large pages are compressed, see [ProjectorMarkdownPayloadCompressor].
+     */
+    var setHtmlPayloadCallback: BiConsumer<Int, ProjectorMarkdownPayload>? = null
+      @JvmStatic
+      set
+
+    /**
+     * Used instead of [setCssCallback] if set, large stylesheets are compressed, see [ProjectorMarkdownPayloadCompressor].
+     */
+    var setCssPayloadCallback: BiConsumer<Int, ProjectorMarkdownPayload>? = null
+      @JvmStatic
+      set
+
+    /**
+     * If true, the HTML and the CSS of [batchUpdateCallback] and the block HTML of patches are sent as
+     * [ProjectorMarkdownPayload]s, large ones are compressed, see [ProjectorMarkdownPayloadCompressor].
+     */
+    var isPayloadCompressionSupported = false
+      @JvmStatic
+      set
+
+    /**
+     * Used with [setCssBundleCallback] instead of [setCssCallback] if both are set.
+     * Every distinct bundle is published once until [updateAll] is called.
+     */
+    var publishCssBundleCallback: Consumer<ProjectorMarkdownCssBundle>? = null
+      @JvmStatic
+      set
+
+    /**
+     * Sets the CSS of a panel by the id of a bundle published via [publishCssBundleCallback].
+     */
+    var setCssBundleCallback: BiConsumer<Int, String>? = null
+      @JvmStatic
+      set
+
     var scrollCallback: BiConsumer<Int, Int>? = null
       @JvmStatic
       set
@@ -85,6 +157,29 @@ class ProjectorMarkdownHtmlPanelProvider : MarkdownHtmlPanelProvider() {
       ProjectorMarkdownHtmlPanelUpdater.updateAll()
     }
 
+    /**
+     * Called when the client gets a patch it can't apply.
+     */
+    @Suppress("unused")  // it's used via reflection
+    @JvmStatic
+    fun requestHtmlSnapshot(id: Int) {
+      ProjectorMarkdownHtmlPanelUpdater.resetHtml(id)
+      ProjectorMarkdownHtmlPanelUpdater.setHtml(id)
+    }
+
+    @Suppress("unused")  // it's used via reflection
+    @JvmStatic
+    fun acknowledgeHtml(id: Int, version: Long) {
+      ProjectorMarkdownHtmlPanelUpdater.acknowledgeHtml(id, version)
+    }
+
+    /**
+     * The preset dictionary of the compressed payloads.
+     */
+    @Suppress("unused")  // it's used via reflection
+    @JvmStatic
+    fun getCompressionDictionary(): ByteArray = ProjectorMarkdownPayloadCompressor.DICTIONARY.copyOf()
+
     @Suppress("unused")  // it's used via reflection
     @JvmStatic
     fun openInExternalBrowser(link: String) {
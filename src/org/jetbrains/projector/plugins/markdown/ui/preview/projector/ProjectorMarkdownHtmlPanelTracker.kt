@@ -0,0 +1,110 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.awt.event.ComponentEvent
+import java.awt.event.ComponentListener
+import java.awt.event.HierarchyBoundsListener
+import java.awt.event.HierarchyEvent
+import java.awt.event.HierarchyListener
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import javax.swing.SwingUtilities
+
+/**
+ * Tracks the location, the size, the visibility and the window of all the panels.
+ *
+ * A panel is checked when Swing reports a change of its component or of the component ancestors.
+ * Changes which aren't reported, e.g. moves of a window by the client, are caught by a single poll shared by all the panels.
+ */
+object ProjectorMarkdownHtmlPanelTracker {
+
+  private const val POLL_PERIOD_MS = 1000L
+
+  private val panelToListener = mutableMapOf<ProjectorMarkdownHtmlPanel, PanelListener>()
+
+  private var poll: ScheduledFuture<*>? = null
+
+  fun register(panel: ProjectorMarkdownHtmlPanel) {
+    val listener = PanelListener(panel)
+
+    synchronized(this) {
+      panelToListener[panel] = listener
+
+      if (poll == null) {
+        poll = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(
+          { SwingUtilities.invokeLater(::checkAll) }, POLL_PERIOD_MS, POLL_PERIOD_MS, TimeUnit.MILLISECONDS
+        )
+      }
+    }
+
+    panel.component.let {
+      it.addComponentListener(listener)
+      it.addHierarchyListener(listener)
+      it.addHierarchyBoundsListener(listener)
+    }
+  }
+
+  fun unregister(panel: ProjectorMarkdownHtmlPanel) {
+    val listener = synchronized(this) {
+      panelToListener.remove(panel).also {
+        if (panelToListener.isEmpty()) {
+          poll?.cancel(false)
+          poll = null
+        }
+      }
+    } ?: return
+
+    panel.component.let {
+      it.removeComponentListener(listener)
+      it.removeHierarchyListener(listener)
+      it.removeHierarchyBoundsListener(listener)
+    }
+  }
+
+  private fun checkAll() {
+    val panels = synchronized(this) { panelToListener.keys.toList() }
+
+    panels.forEach(ProjectorMarkdownHtmlPanel::checkComponent)
+  }
+
+  private class PanelListener(private val panel: ProjectorMarkdownHtmlPanel) : ComponentListener, HierarchyListener,
+                                                                               HierarchyBoundsListener {
+
+    override fun componentResized(e: ComponentEvent) = panel.checkComponent()
+
+    override fun componentMoved(e: ComponentEvent) = panel.checkComponent()
+
+    override fun componentShown(e: ComponentEvent) = panel.checkComponent()
+
+    override fun componentHidden(e: ComponentEvent) = panel.checkComponent()
+
+    override fun hierarchyChanged(e: HierarchyEvent) = panel.checkComponent()
+
+    override fun ancestorMoved(e: HierarchyEvent) = panel.checkComponent()
+
+    override fun ancestorResized(e: HierarchyEvent) = panel.checkComponent()
+  }
+}
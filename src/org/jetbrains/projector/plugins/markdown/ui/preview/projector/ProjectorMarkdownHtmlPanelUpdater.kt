@@ -23,9 +23,19 @@
  */
 package org.jetbrains.projector.plugins.markdown.ui.preview.projector
 
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ModalityState
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.io.DigestUtil
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownRenderedHtml
+import org.jetbrains.projector.plugins.markdown.ui.preview.projector.ProjectorMarkdownHtmlPanelDispatcher.Event
 import java.awt.Dimension
 import java.awt.Point
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.function.BiConsumer
+import java.util.function.Consumer
 import kotlin.concurrent.read
 import kotlin.concurrent.write
 
@@ -35,71 +45,368 @@ object ProjectorMarkdownHtmlPanelUpdater {
 
   private val idToPanel = mutableMapOf<Int, ProjectorMarkdownHtmlPanel>()
 
+  private val idToMailbox = mutableMapOf<Int, HtmlMailbox>()
+
+  private val publishedCssBundleIds = mutableSetOf<String>()
+
+  private val ALL_STATE_EVENTS = Event.values().filter { it != Event.DISPOSE }.toTypedArray()
+
+  private val UPDATE_ALL_EXECUTOR = AppExecutorUtil.createBoundedApplicationPoolExecutor("Markdown Projector Update All", 1)
+
+  private val ACK_TIMEOUT_MS = java.lang.Long.getLong("markdown.projector.html.ack.timeout.ms", 5000L)
+
+  /**
+   * The number of HTML versions replaced by newer ones while waiting for an acknowledgement.
+   */
+  var droppedHtmlVersions = 0L
+    @Synchronized get
+    private set
+
+  /**
+   * The number of pages the clients already had after [updateAll].
+   */
+  var reusedHtmlPages = 0L
+    @Synchronized get
+    private set
+
   fun put(panel: ProjectorMarkdownHtmlPanel) {
     idToPanelLock.write {
       idToPanel[panel.id] = panel
+      idToMailbox[panel.id] = HtmlMailbox()
     }
   }
 
+  /**
+   * Sends everything again, e.g. for a new client. The images are read from disk, so it's done on a pooled thread
+   * and the pages are sent after the images they reference.
+   */
   fun updateAll() {
+    UPDATE_ALL_EXECUTOR.execute(::doUpdateAll)
+  }
+
+  private fun doUpdateAll() {
+    if (ProjectorMarkdownHtmlPanelProvider.publishImageCallback != null) {
+      val imageHashes = mutableSetOf<String>()
+      idToPanelLock.read {
+        idToPanel.values.forEach { panel ->
+          val renderedHtml = panel.lastChangedRenderedHtml
+          if (renderedHtml != null) {
+            renderedHtml.blocks.forEach { ProjectorImagePublisher.collectImageHashes(it.html, imageHashes) }
+          }
+          else {
+            ProjectorImagePublisher.collectImageHashes(panel.lastChangedHtml, imageHashes)
+          }
+        }
+      }
+      ProjectorImagePublisher.republish(imageHashes)
+    }
+    synchronized(publishedCssBundleIds) { publishedCssBundleIds.clear() }
+
     idToPanelLock.read {
       idToPanel.keys.forEach {
-        show(it)
-        resize(it)
-        move(it)
-        placeToWindow(it)
-        setHtml(it)
-        setCss(it)
-        scroll(it)
+        if (isHtmlAcknowledged()) {
+          offerHtml(it)
+        }
+        else {
+          resetHtml(it)
+        }
+        ProjectorMarkdownHtmlPanelDispatcher.post(it, *ALL_STATE_EVENTS)
       }
     }
   }
 
-  fun show(id: Int) {
-    val panel = idToPanelLock.read { idToPanel[id] ?: return }
+  fun show(id: Int) = ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.SHOW)
+
+  fun resize(id: Int) = ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.RESIZE)
+
+  fun move(id: Int) = ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.MOVE)
+
+  fun dispose(id: Int) {
+    idToPanelLock.write {
+      idToPanel.remove(id)
+      idToMailbox.remove(id)
+    }
+
+    ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.DISPOSE)
+  }
+
+  fun placeToWindow(id: Int) = ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.PLACE_TO_WINDOW)
+
+  fun setHtml(id: Int) = ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.HTML)
+
+  /**
+   * Makes the next [setHtml] send the whole page.
+   */
+  fun resetHtml(id: Int) {
+    val mailbox = idToPanelLock.read { idToMailbox[id] ?: return }
+
+    synchronized(mailbox) {
+      mailbox.sentHtml = null
+      mailbox.ackedVersion = mailbox.version
+      mailbox.isOffered = false
+    }
+  }
+
+  /**
+   * Makes the next [setHtml] send only the hash of the page, the client acknowledges it if it already has the page.
+   */
+  private fun offerHtml(id: Int) {
+    val mailbox = idToPanelLock.read { idToMailbox[id] ?: return }
 
-    ProjectorMarkdownHtmlPanelProvider.showCallback?.accept(id, panel.shown)
+    synchronized(mailbox) {
+      mailbox.ackedVersion = mailbox.version
+      mailbox.isOffered = true
+    }
   }
 
-  fun resize(id: Int) {
-    val panel = idToPanelLock.read { idToPanel[id] ?: return }
+  fun acknowledgeHtml(id: Int, version: Long) {
+    val mailbox = idToPanelLock.read { idToMailbox[id] ?: return }
+
+    val isPending = synchronized(mailbox) {
+      if (version <= mailbox.ackedVersion || version > mailbox.version) {
+        return
+      }
+
+      mailbox.ackedVersion = version
+      if (mailbox.isOffered && version == mailbox.version) {
+        mailbox.isOffered = false
+        synchronized(this) { reusedHtmlPages++ }
+      }
 
-    ProjectorMarkdownHtmlPanelProvider.resizeCallback?.accept(id, Dimension(panel.width, panel.height))
+      mailbox.isPending.also { mailbox.isPending = false }
+    }
+
+    if (isPending) {
+      setHtml(id)
+    }
   }
 
-  fun move(id: Int) {
-    val panel = idToPanelLock.read { idToPanel[id] ?: return }
+  fun setCss(id: Int) = ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.CSS)
+
+  fun scroll(id: Int) = ProjectorMarkdownHtmlPanelDispatcher.post(id, Event.SCROLL)
+
+  /**
+   * Sends the latest state of the panels for the merged events of a frame.
+   *
+   * If [ProjectorMarkdownHtmlPanelProvider.batchUpdateCallback] is set, all the changes are sent by a single call,
+   * otherwise every change is sent by its own callback.
+   *
+   * The updates are built on the calling thread, the callbacks are invoked on EDT since the updates hold Swing components.
+   */
+  internal fun send(events: Map<Int, Set<Event>>) {
+    val batchCallback = ProjectorMarkdownHtmlPanelProvider.batchUpdateCallback
+    val newCssBundles = mutableListOf<ProjectorMarkdownCssBundle>()
+    val updates = events.map { (id, panelEvents) -> createUpdate(id, panelEvents, batchCallback != null, newCssBundles) }
 
-    ProjectorMarkdownHtmlPanelProvider.moveCallback?.accept(id, Point(panel.x, panel.y))
+    ApplicationManager.getApplication().invokeLater({ deliver(updates, newCssBundles, batchCallback) }, ModalityState.any())
   }
 
-  fun dispose(id: Int) {
-    idToPanelLock.write { idToPanel.remove(id) }
+  private fun deliver(updates: List<ProjectorMarkdownHtmlPanelUpdate>,
+                      newCssBundles: List<ProjectorMarkdownCssBundle>,
+                      batchCallback: Consumer<List<ProjectorMarkdownHtmlPanelUpdate>>?) {
+    ProjectorMarkdownHtmlPanelProvider.publishCssBundleCallback?.let { newCssBundles.forEach(it::accept) }
+
+    if (batchCallback != null) {
+      batchCallback.accept(updates)
+    }
+    else {
+      updates.forEach(::sendSeparately)
+    }
+  }
 
-    ProjectorMarkdownHtmlPanelProvider.disposeCallback?.accept(id)
+  private fun createUpdate(id: Int,
+                           events: Set<Event>,
+                           isBatch: Boolean,
+                           newCssBundles: MutableList<ProjectorMarkdownCssBundle>): ProjectorMarkdownHtmlPanelUpdate {
+    val update = ProjectorMarkdownHtmlPanelUpdate(id)
+    update.isDisposed = Event.DISPOSE in events
+
+    val (panel, mailbox) = idToPanelLock.read { (idToPanel[id] ?: return update) to (idToMailbox[id] ?: return update) }
+
+    events.forEach {
+      when (it) {
+        Event.SHOW -> update.shown = panel.shown
+        Event.RESIZE -> update.size = Dimension(panel.width, panel.height)
+        Event.MOVE -> update.location = Point(panel.x, panel.y)
+        Event.PLACE_TO_WINDOW -> {
+          update.isPlacedToWindow = true
+          update.rootComponent = panel.rootComponent
+        }
+        Event.HTML -> addHtml(update, panel, mailbox, isBatch)
+        Event.CSS -> addCss(update, panel, isBatch, newCssBundles)
+        Event.SCROLL -> update.scrollOffset = panel.lastScrollOffset
+        Event.DISPOSE -> Unit
+      }
+    }
+
+    return update
+  }
+
+  private fun addHtml(update: ProjectorMarkdownHtmlPanelUpdate, panel: ProjectorMarkdownHtmlPanel, mailbox: HtmlMailbox, isBatch: Boolean) {
+    val isAcknowledged = isBatch && isHtmlAcknowledged()
+    val usePatches = isBatch || ProjectorMarkdownHtmlPanelProvider.setHtmlPatchCallback != null
+
+    synchronized(mailbox) {
+      val renderedHtml = panel.lastChangedRenderedHtml
+      val nextVersion = mailbox.version + 1
+
+      if (isAcknowledged && mailbox.version > mailbox.ackedVersion &&
+          System.currentTimeMillis() - mailbox.sentTime < ACK_TIMEOUT_MS) {
+        // the version is sent after the client acknowledges the previous one or the acknowledgement times out,
+        // newer versions replace it until then
+        if (mailbox.isPending) {
+          synchronized(this) { droppedHtmlVersions++ }
+        }
+        else {
+          val unackedVersion = mailbox.version
+          val delayMs = mailbox.sentTime + ACK_TIMEOUT_MS - System.currentTimeMillis()
+          AppExecutorUtil.getAppScheduledExecutorService().schedule(
+            { resendPendingHtml(panel.id, unackedVersion) }, delayMs, TimeUnit.MILLISECONDS
+          )
+        }
+        mailbox.isPending = true
+        return
+      }
+
+      if (isAcknowledged && mailbox.isOffered) {
+        mailbox.sentHtml = renderedHtml
+        update.isHtmlOffered = true
+      }
+      else if (!usePatches || renderedHtml == null) {
+        mailbox.sentHtml = null
+        if (isBatch && isPayloadCompressionSupported()) {
+          update.htmlPayload = ProjectorMarkdownPayloadCompressor.encode(panel.lastChangedHtml)
+        }
+        else {
+          update.html = panel.lastChangedHtml
+        }
+      }
+      else {
+        val previousHtml = mailbox.sentHtml
+        val patch = when (previousHtml) {
+          null -> ProjectorMarkdownHtmlPatch.snapshot(nextVersion, renderedHtml)
+
+          else -> ProjectorMarkdownHtmlPatch.diff(nextVersion, previousHtml, renderedHtml) ?: return
+        }
+
+        mailbox.sentHtml = renderedHtml
+        update.htmlPatch = if (isPayloadCompressionSupported()) patch.compressed() else patch
+      }
+
+      mailbox.version = nextVersion
+      mailbox.sentTime = System.currentTimeMillis()
+      mailbox.isPending = false
+      update.htmlVersion = nextVersion
+      if (isAcknowledged) {
+        // the hash of a page split by blocks is combined from the hashes of its blocks computed once per block
+        update.htmlHash = renderedHtml?.contentHash
+                          ?: StringUtil.toHexString(DigestUtil.sha256().digest(panel.lastChangedHtml.toByteArray()))
+      }
+    }
+  }
+
+  /**
+   * Sends the pending version of a panel if the client hasn't acknowledged the [unackedVersion] in time.
+   */
+  private fun resendPendingHtml(id: Int, unackedVersion: Long) {
+    val mailbox = idToPanelLock.read { idToMailbox[id] ?: return }
+
+    val isPending = synchronized(mailbox) { mailbox.isPending && mailbox.version == unackedVersion }
+    if (isPending) {
+      setHtml(id)
+    }
   }
 
-  fun placeToWindow(id: Int) {
-    val panel = idToPanelLock.read { idToPanel[id] ?: return }
+  private fun isPayloadCompressionSupported() = ProjectorMarkdownHtmlPanelProvider.isPayloadCompressionSupported
 
-    ProjectorMarkdownHtmlPanelProvider.placeToWindowCallback?.accept(id, panel.rootComponent)
+  private fun isHtmlAcknowledged(): Boolean {
+    return ProjectorMarkdownHtmlPanelProvider.isHtmlAcknowledged && ProjectorMarkdownHtmlPanelProvider.batchUpdateCallback != null
   }
 
-  fun setHtml(id: Int) {
-    val panel = idToPanelLock.read { idToPanel[id] ?: return }
+  private fun addCss(update: ProjectorMarkdownHtmlPanelUpdate,
+                     panel: ProjectorMarkdownHtmlPanel,
+                     isBatch: Boolean,
+                     newCssBundles: MutableList<ProjectorMarkdownCssBundle>) {
+    val bundle = panel.lastCssBundle
+    val publishCallback = ProjectorMarkdownHtmlPanelProvider.publishCssBundleCallback
+    val useBundles = publishCallback != null && (isBatch || ProjectorMarkdownHtmlPanelProvider.setCssBundleCallback != null)
+
+    if (bundle == null || !useBundles) {
+      if (isBatch && isPayloadCompressionSupported()) {
+        update.cssPayload = ProjectorMarkdownPayloadCompressor.encode(panel.lastCssString)
+      }
+      else {
+        update.css = panel.lastCssString
+      }
+      return
+    }
 
-    ProjectorMarkdownHtmlPanelProvider.setHtmlCallback?.accept(id, panel.lastChangedHtml)
+    synchronized(publishedCssBundleIds) {
+      if (publishedCssBundleIds.add(bundle.id)) {
+        newCssBundles.add(bundle)
+      }
+    }
+
+    update.cssBundleId = bundle.id
   }
 
-  fun setCss(id: Int) {
-    val panel = idToPanelLock.read { idToPanel[id] ?: return }
+  private fun sendSeparately(update: ProjectorMarkdownHtmlPanelUpdate) {
+    val id = update.id
 
-    ProjectorMarkdownHtmlPanelProvider.setCssCallback?.accept(id, panel.lastCssString)
+    with(ProjectorMarkdownHtmlPanelProvider) {
+      update.shown?.let { showCallback?.accept(id, it) }
+      update.size?.let { resizeCallback?.accept(id, it) }
+      update.location?.let { moveCallback?.accept(id, it) }
+      if (update.isPlacedToWindow) {
+        placeToWindowCallback?.accept(id, update.rootComponent)
+      }
+      update.html?.let { sendText(id, it, setHtmlPayloadCallback, setHtmlCallback) }
+      update.htmlPatch?.let { setHtmlPatchCallback?.accept(id, it) }
+      update.css?.let { sendText(id, it, setCssPayloadCallback, setCssCallback) }
+      update.cssBundleId?.let { setCssBundleCallback?.accept(id, it) }
+      update.scrollOffset?.let { scrollCallback?.accept(id, it) }
+      if (update.isDisposed) {
+        disposeCallback?.accept(id)
+      }
+    }
+  }
+
+  private fun sendText(id: Int,
+                       text: String,
+                       payloadCallback: BiConsumer<Int, ProjectorMarkdownPayload>?,
+                       callback: BiConsumer<Int, String>?) {
+    if (payloadCallback != null) {
+      payloadCallback.accept(id, ProjectorMarkdownPayloadCompressor.encode(text))
+    }
+    else {
+      callback?.accept(id, text)
+    }
   }
 
-  fun scroll(id: Int) {
-    val panel = idToPanelLock.read { idToPanel[id] ?: return }
+  /**
+   * The HTML versions of a panel sent to the client.
+   */
+  private class HtmlMailbox {
+
+    /**
+     * The page the client has got via patches.
+     */
+    var sentHtml: MarkdownRenderedHtml? = null
+
+    var version = 0L
+
+    var ackedVersion = 0L
+
+    var sentTime = 0L
+
+    /**
+     * True if the page has changed while the last version wasn't acknowledged.
+     */
+    var isPending = false
 
-    ProjectorMarkdownHtmlPanelProvider.scrollCallback?.accept(id, panel.lastScrollOffset)
+    /**
+     * True if only the hash of the page is sent by the next version.
+     */
+    var isOffered = false
   }
 }
@@ -0,0 +1,123 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownHtmlBlock
+import org.jetbrains.projector.plugins.markdown.ui.preview.MarkdownRenderedHtml
+
+/**
+ * Changes of the preview page sent to the client instead of the whole HTML.
+ *
+ * The page is a list of top-level blocks. [operations] are applied in order, an index refers to the list
+ * with the previous operations already applied. `md-src-pos` attributes in block HTML are relative to the block offset,
+ * [srcOffsets] contains the offsets of all the blocks after the patch and is null if they haven't changed.
+ *
+ * A [compressed] patch has the HTML of all the operations joined in [htmlPayload]
+ * and every operation has only the [Operation.htmlLength] of its part.
+ *
+ * A [snapshot] patch replaces the whole page. Other patches must be applied only if [sequence] is next to the version
+ * of the page the client has, otherwise the client should call [ProjectorMarkdownHtmlPanelProvider.requestHtmlSnapshot].
+ */
+class ProjectorMarkdownHtmlPatch private constructor(
+  val sequence: Long,
+  val snapshot: Boolean,
+  val operations: List<Operation>,
+  val srcOffsets: IntArray?,
+  val srcLength: Int,
+  val htmlPayload: ProjectorMarkdownPayload? = null
+) {
+
+  class Operation(val type: OperationType, val index: Int, val html: String?, val htmlLength: Int = html?.length ?: 0)
+
+  enum class OperationType {
+    INSERT,
+    REMOVE,
+    REPLACE,
+  }
+
+  fun compressed(): ProjectorMarkdownHtmlPatch {
+    val html = operations.joinToString(separator = "") { it.html.orEmpty() }
+    val compressedOperations = operations.map { Operation(it.type, it.index, null, it.htmlLength) }
+
+    return ProjectorMarkdownHtmlPatch(sequence, snapshot, compressedOperations, srcOffsets, srcLength,
+                                      ProjectorMarkdownPayloadCompressor.encode(html))
+  }
+
+  companion object {
+
+    fun snapshot(sequence: Long, renderedHtml: MarkdownRenderedHtml): ProjectorMarkdownHtmlPatch {
+      val blocks = renderedHtml.blocks
+      val operations = blocks.mapIndexed { index, block -> Operation(OperationType.INSERT, index, block.html) }
+
+      return ProjectorMarkdownHtmlPatch(sequence, true, operations, srcOffsetsOf(blocks), renderedHtml.srcLength)
+    }
+
+    /**
+     * Returns null if the pages are the same.
+     */
+    fun diff(sequence: Long, oldHtml: MarkdownRenderedHtml, newHtml: MarkdownRenderedHtml): ProjectorMarkdownHtmlPatch? {
+      val oldBlocks = oldHtml.blocks
+      val newBlocks = newHtml.blocks
+      val minSize = minOf(oldBlocks.size, newBlocks.size)
+
+      // unchanged blocks usually share their strings, so equals returns on the identity check
+      var prefix = 0
+      while (prefix < minSize && oldBlocks[prefix].html == newBlocks[prefix].html) {
+        ++prefix
+      }
+
+      var suffix = 0
+      while (suffix < minSize - prefix && oldBlocks[oldBlocks.size - 1 - suffix].html == newBlocks[newBlocks.size - 1 - suffix].html) {
+        ++suffix
+      }
+
+      val oldChanged = oldBlocks.size - prefix - suffix
+      val newChanged = newBlocks.size - prefix - suffix
+      val replaced = minOf(oldChanged, newChanged)
+
+      val operations = mutableListOf<Operation>()
+      for (i in prefix until prefix + replaced) {
+        operations.add(Operation(OperationType.REPLACE, i, newBlocks[i].html))
+      }
+      for (i in prefix + replaced until prefix + newChanged) {
+        operations.add(Operation(OperationType.INSERT, i, newBlocks[i].html))
+      }
+      repeat(oldChanged - replaced) {
+        operations.add(Operation(OperationType.REMOVE, prefix + replaced, null))
+      }
+
+      val oldSrcOffsets = srcOffsetsOf(oldBlocks)
+      val newSrcOffsets = srcOffsetsOf(newBlocks)
+      val srcOffsetsChanged = !oldSrcOffsets.contentEquals(newSrcOffsets)
+
+      if (operations.isEmpty() && !srcOffsetsChanged && oldHtml.srcLength == newHtml.srcLength) {
+        return null
+      }
+
+      return ProjectorMarkdownHtmlPatch(sequence, false, operations, newSrcOffsets.takeIf { srcOffsetsChanged }, newHtml.srcLength)
+    }
+
+    private fun srcOffsetsOf(blocks: List<MarkdownHtmlBlock>) = IntArray(blocks.size) { blocks[it].srcOffset }
+  }
+}
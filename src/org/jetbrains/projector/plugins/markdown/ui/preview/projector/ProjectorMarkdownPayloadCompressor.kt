@@ -0,0 +1,152 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2019-2020 JetBrains s.r.o.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.jetbrains.projector.plugins.markdown.ui.preview.projector
+
+import com.intellij.openapi.diagnostic.Logger
+import org.intellij.markdown.html.HtmlGenerator
+import java.io.ByteArrayOutputStream
+import java.util.zip.Deflater
+
+/**
+ * Encodes HTML and CSS sent via [ProjectorMarkdownHtmlPanelProvider.setHtmlPayloadCallback],
+ * [ProjectorMarkdownHtmlPanelProvider.setCssPayloadCallback] and, if [ProjectorMarkdownHtmlPanelProvider.isPayloadCompressionSupported],
+ * via batch updates and patches as UTF-8 deflated with [DICTIONARY] if they are longer than [THRESHOLD].
+ *
+ * The compression ratio and time are logged in debug mode for every payload and are summed up for tuning the threshold.
+ */
+object ProjectorMarkdownPayloadCompressor {
+
+  private val THRESHOLD = Integer.getInteger("markdown.projector.compression.threshold", 4096)
+
+  private val LOG = Logger.getInstance(ProjectorMarkdownPayloadCompressor::class.java)
+
+  private val SRC_POS = " ${HtmlGenerator.SRC_ATTRIBUTE_NAME}=\""
+
+  /**
+   * The preset dictionary, clients need it to inflate the payloads.
+   *
+   * The rendered tags have the source positions as the last attribute, e.g. `<p md-src-pos="0..12">`,
+   * so the tags are stored with the beginning of the attribute. Block positions are relative, so they usually start with `0..`.
+   * Deflate looks for matches from the end of the dictionary first, so the most frequent strings are at the end.
+   */
+  val DICTIONARY: ByteArray = listOf(
+    "<table$SRC_POS", "<thead$SRC_POS", "<tbody$SRC_POS", "<tr$SRC_POS", "<th$SRC_POS", "<td$SRC_POS",
+    "</td>", "</th>", "</tr>", "</tbody>", "</thead>", "</table>",
+    "<hr$SRC_POS", "<blockquote$SRC_POS", "</blockquote>",
+    "<h4$SRC_POS", "<h3$SRC_POS", "<h2$SRC_POS", "<h1$SRC_POS", "</h4>", "</h3>", "</h2>", "</h1>",
+    "<img src=\"", "\" alt=\"", "<a href=\"", "</a>", "<strong$SRC_POS", "</strong>", "<em$SRC_POS", "</em>",
+    "<pre$SRC_POS", "<code class=\"language-", "</code></pre>", "<code$SRC_POS", "</code>",
+    "<ol$SRC_POS", "</ol>", "<ul$SRC_POS", "</ul>", "<li$SRC_POS", "</li>", "<br />",
+    "<span$SRC_POS", "</span>", "<body$SRC_POS", "\"$SRC_POS", "<p${SRC_POS}0..", "</p>"
+  ).joinToString(separator = "").toByteArray()
+
+  var payloads = 0L
+    @Synchronized get
+    private set
+
+  var compressedPayloads = 0L
+    @Synchronized get
+    private set
+
+  /**
+   * The UTF-8 length of all the payloads.
+   */
+  var originalBytes = 0L
+    @Synchronized get
+    private set
+
+  var sentBytes = 0L
+    @Synchronized get
+    private set
+
+  var compressionNanos = 0L
+    @Synchronized get
+    private set
+
+  val compressionRatio: Double
+    @Synchronized get() = if (sentBytes == 0L) 1.0 else originalBytes.toDouble() / sentBytes
+
+  fun encode(text: String): ProjectorMarkdownPayload {
+    val bytes = text.toByteArray()
+
+    if (bytes.size < THRESHOLD) {
+      count(bytes.size, bytes.size, 0L, isCompressed = false)
+      return ProjectorMarkdownPayload(bytes, false, bytes.size)
+    }
+
+    val start = System.nanoTime()
+    val compressed = deflate(bytes)
+    val nanos = System.nanoTime() - start
+
+    if (LOG.isDebugEnabled) {
+      LOG.debug("Payload of ${bytes.size} bytes compressed to ${compressed.size} bytes in ${nanos / 1000} us")
+    }
+
+    // e.g. inlined images don't compress
+    if (compressed.size >= bytes.size) {
+      count(bytes.size, bytes.size, nanos, isCompressed = false)
+      return ProjectorMarkdownPayload(bytes, false, bytes.size)
+    }
+
+    count(bytes.size, compressed.size, nanos, isCompressed = true)
+    return ProjectorMarkdownPayload(compressed, true, bytes.size)
+  }
+
+  private fun deflate(bytes: ByteArray): ByteArray {
+    val deflater = Deflater(Deflater.DEFAULT_COMPRESSION)
+
+    try {
+      deflater.setDictionary(DICTIONARY)
+      deflater.setInput(bytes)
+      deflater.finish()
+
+      val output = ByteArrayOutputStream(bytes.size / 4)
+      val buffer = ByteArray(8192)
+      while (!deflater.finished()) {
+        output.write(buffer, 0, deflater.deflate(buffer))
+      }
+
+      return output.toByteArray()
+    }
+    finally {
+      deflater.end()
+    }
+  }
+
+  @Synchronized
+  private fun count(originalLength: Int, sentLength: Int, nanos: Long, isCompressed: Boolean) {
+    payloads++
+    if (isCompressed) {
+      compressedPayloads++
+    }
+    originalBytes += originalLength
+    sentBytes += sentLength
+    compressionNanos += nanos
+  }
+}
+
+/**
+ * UTF-8 text deflated with [ProjectorMarkdownPayloadCompressor.DICTIONARY] if [isCompressed].
+ */
+class ProjectorMarkdownPayload(val data: ByteArray, val isCompressed: Boolean, val originalLength: Int)